@@ -19,17 +19,13 @@ package com.google.android.photostream;
 import android.os.*;
 import android.os.Process;
 
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>UserTask enables proper and easy use of the UI thread. This class allows to
@@ -130,23 +126,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 public abstract class UserTask<Params, Progress, Result> {
     private static final String LOG_TAG = "UserTask";
 
-    private static final int CORE_POOL_SIZE = 1;
-    private static final int MAXIMUM_POOL_SIZE = 10;
-    private static final int KEEP_ALIVE = 10;
+    private static final int POOL_SIZE = 5;
 
-    private static final BlockingQueue<Runnable> sWorkQueue =
-            new LinkedBlockingQueue<Runnable>(MAXIMUM_POOL_SIZE);
-
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
-
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "UserTask #" + mCount.getAndIncrement());
-        }
-    };
-
-    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE,
-            MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sWorkQueue, sThreadFactory);
+    private static volatile Executor sDefaultExecutor =
+            TaskExecutor.newPriorityExecutor("UserTask", POOL_SIZE);
 
     private static final int MESSAGE_POST_RESULT = 0x1;
     private static final int MESSAGE_POST_PROGRESS = 0x2;
@@ -158,6 +141,7 @@ public abstract class UserTask<Params, Progress, Result> {
     private final FutureTask<Result> mFuture;
 
     private volatile Status mStatus = Status.PENDING;
+    private volatile int mPriority = TaskExecutor.PRIORITY_VISIBLE;
 
     /**
      * Indicates the current status of the task. Each status will be set only once
@@ -189,7 +173,7 @@ public abstract class UserTask<Params, Progress, Result> {
             }
         };
 
-        mFuture = new FutureTask<Result>(mWorker) {
+        mFuture = new UserFutureTask(mWorker) {
             @Override
             protected void done() {
                 Message message;
@@ -219,6 +203,40 @@ public abstract class UserTask<Params, Progress, Result> {
         };
     }
 
+    /**
+     * Sets the executor used by {@link #execute(Object[])}. The default executor is a
+     * {@link TaskExecutor#newPriorityExecutor(String, int) priority executor}.
+     *
+     * @param executor The executor to run tasks on.
+     */
+    public static void setDefaultExecutor(Executor executor) {
+        sDefaultExecutor = executor;
+    }
+
+    /**
+     * Returns the executor used by {@link #execute(Object[])}.
+     *
+     * @return The default executor.
+     */
+    public static Executor getDefaultExecutor() {
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Sets the priority of this task. The priority is honored by
+     * {@link TaskExecutor#newPriorityExecutor(String, int) priority executors} only and
+     * must be set before the task is executed.
+     *
+     * @param priority The priority of the task, for instance
+     *        {@link TaskExecutor#PRIORITY_PREFETCH}. Lower values run first.
+     *
+     * @return This instance of UserTask.
+     */
+    public final UserTask<Params, Progress, Result> setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
     /**
      * Returns the current status of this task.
      *
@@ -377,6 +395,25 @@ public abstract class UserTask<Params, Progress, Result> {
      *         {@link UserTask.Status#RUNNING} or {@link UserTask.Status#FINISHED}.
      */
     public final UserTask<Params, Progress, Result> execute(Params... params) {
+        return executeOnExecutor(sDefaultExecutor, params);
+    }
+
+    /**
+     * Executes the task with the specified parameters on the specified executor.
+     * The task returns itself (this) so that the caller can keep a reference to it.
+     *
+     * This method must be invoked on the UI thread.
+     *
+     * @param executor The executor to run the task on.
+     * @param params The parameters of the task.
+     *
+     * @return This instance of UserTask.
+     *
+     * @throws IllegalStateException If {@link #getStatus()} returns either
+     *         {@link UserTask.Status#RUNNING} or {@link UserTask.Status#FINISHED}.
+     */
+    public final UserTask<Params, Progress, Result> executeOnExecutor(Executor executor,
+            Params... params) {
         if (mStatus != Status.PENDING) {
             switch (mStatus) {
                 case RUNNING:
@@ -394,7 +431,7 @@ public abstract class UserTask<Params, Progress, Result> {
         onPreExecute();
 
         mWorker.mParams = params;
-        sExecutor.execute(mFuture);
+        executor.execute(mFuture);
 
         return this;
     }
@@ -440,6 +477,20 @@ public abstract class UserTask<Params, Progress, Result> {
         }
     }
 
+    /**
+     * Future running the background computation. Exposes the priority of the task
+     * to the executor.
+     */
+    private class UserFutureTask extends FutureTask<Result> implements TaskExecutor.Prioritized {
+        UserFutureTask(Callable<Result> callable) {
+            super(callable);
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+    }
+
     private static abstract class WorkerRunnable<Params, Result> implements Callable<Result> {
         Params[] mParams;
     }
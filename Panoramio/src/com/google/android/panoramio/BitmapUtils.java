@@ -24,6 +24,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -72,12 +73,44 @@ public class BitmapUtils {
         return bitmap;
     }
 
+    /**
+     * Decodes a bitmap from the specified file, subsampled to be no smaller than
+     * necessary to fill the specified size. Only powers of two are used as sample
+     * sizes, which decode the fastest.
+     * 
+     * @param file The file containing the encoded bitmap
+     * @param maxWidth The width the bitmap will be displayed at
+     * @param maxHeight The height the bitmap will be displayed at
+     * 
+     * @return The bitmap, or null if it could not be decoded
+     */
+    public static Bitmap decodeFile(File file, int maxWidth, int maxHeight) {
+        final String path = file.getAbsolutePath();
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= maxWidth &&
+                options.outHeight / (sampleSize * 2) >= maxHeight) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
     /**
      * Closes the specified stream.
      * 
      * @param stream The stream to close.
      */
-    private static void closeStream(Closeable stream) {
+    static void closeStream(Closeable stream) {
         if (stream != null) {
             try {
                 stream.close();
@@ -35,6 +35,11 @@ public class ImageAdapter extends BaseAdapter {
      */
     private ImageManager mImageManager;
 
+    /**
+     * Downloads and caches the thumbnails
+     */
+    private ImageLoader mImageLoader;
+
     private Context mContext;
     
     private MyDataSetObserver mObserver;
@@ -57,6 +62,7 @@ public class ImageAdapter extends BaseAdapter {
     
     public ImageAdapter(Context c) {
         mImageManager = ImageManager.getInstance(c);
+        mImageLoader = ImageLoader.getInstance();
         mContext = c;
         mObserver = new MyDataSetObserver();
         
@@ -113,7 +119,7 @@ public class ImageAdapter extends BaseAdapter {
         PanoramioItem s = mImageManager.get(position);
 
         ImageView i = (ImageView) view.findViewById(R.id.image);
-        i.setImageBitmap(s.getBitmap());
+        mImageLoader.loadThumbnail(i, s.getThumbUrl());
         i.setBackgroundResource(R.drawable.picture_frame);
         
         TextView t = (TextView) view.findViewById(R.id.title);
@@ -24,12 +24,20 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.Window;
+import android.widget.AbsListView;
 import android.widget.ListView;
+import android.widget.AbsListView.OnScrollListener;
 
 /**
  * Activity which displays the list of images.
  */
-public class ImageList extends ListActivity {
+public class ImageList extends ListActivity implements OnScrollListener {
+    
+    /**
+     * Number of items left below the last visible item when the next page of
+     * results starts loading
+     */
+    private static final int LOAD_MORE_THRESHOLD = 5;
     
     ImageManager mImageManager;
     
@@ -52,7 +60,7 @@ public class ImageList extends ListActivity {
 
     /**
      * Observer used to turn the progress indicator off when the {@link ImageManager} is
-     * done downloading.
+     * done downloading a page.
      */
     private class MyDataSetObserver extends DataSetObserver {
         @Override
@@ -84,8 +92,9 @@ public class ImageList extends ListActivity {
         if (mImageManager.isLoading()) {
             getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
                     Window.PROGRESS_VISIBILITY_ON);
-            mImageManager.addObserver(mObserver);
         }
+        mImageManager.addObserver(mObserver);
+        listView.setOnScrollListener(this);
         
         // Read the user's search area from the intent
         Intent i = getIntent();
@@ -108,5 +117,21 @@ public class ImageList extends ListActivity {
         startActivity(i);
     }   
     
+    /**
+     * Loads the next page of results when the user scrolls near the end of the list.
+     */
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+            if (mImageManager.loadMore()) {
+                getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
+                        Window.PROGRESS_VISIBILITY_ON);
+            }
+        }
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+    
     
 }
\ No newline at end of file
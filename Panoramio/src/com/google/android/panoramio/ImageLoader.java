@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the thumbnails displayed in the list of search results. Thumbnails are
+ * downloaded by a small pool of background threads and kept in a bounded cache, so
+ * the thumbnails of items that were scrolled off screen can be reclaimed. Downloads
+ * that are no longer wanted by any view are cancelled if they have not started yet.
+ *
+ * Also loads the larger photos displayed by {@link ViewImage}. Photos are downloaded
+ * one at a time into a bounded disk cache, then decoded with a sample size that fits
+ * the screen. The last photos decoded are also kept in memory.
+ *
+ * All the methods of this class must be called from the UI thread.
+ */
+public class ImageLoader {
+    private static final String TAG = "Panoramio";
+
+    /**
+     * Maximum number of thumbnails kept in memory. The least recently used thumbnails
+     * are evicted first.
+     */
+    private static final int MAX_THUMBNAILS = 48;
+
+    /**
+     * Number of threads downloading thumbnails
+     */
+    private static final int FETCH_THREADS = 2;
+
+    /**
+     * Maximum number of decoded photos kept in memory
+     */
+    private static final int MAX_PHOTOS = 2;
+
+    /**
+     * Maximum size, in bytes, of the photos kept on disk
+     */
+    private static final long MAX_DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static final String PHOTO_CACHE_DIRECTORY = "photos";
+
+    private static final int IO_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Receives the photos loaded by
+     * {@link ImageLoader#loadPhoto(Context, String, int, int, PhotoCallback)}
+     */
+    public interface PhotoCallback {
+        /**
+         * Called on the UI thread when the photo is loaded, unless the load was
+         * cancelled.
+         * 
+         * @param bitmap The photo, or null if it could not be loaded
+         */
+        void onPhotoLoaded(Bitmap bitmap);
+    }
+
+    /**
+     * Holds the single instance of a ImageLoader that is shared by the process.
+     */
+    private static ImageLoader sInstance;
+
+    /**
+     * Used to post downloaded thumbnails back to the UI thread
+     */
+    private final Handler mHandler = new Handler();
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(FETCH_THREADS);
+
+    private final ExecutorService mPhotoExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Only used by the photo thread, one photo is downloaded at a time
+     */
+    private final HttpClient mPhotoClient = new DefaultHttpClient();
+
+    /**
+     * Thumbnails downloaded so far, by URL, in access order
+     */
+    private final LinkedHashMap<String, Bitmap> mThumbnails =
+            new LinkedHashMap<String, Bitmap>(MAX_THUMBNAILS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+            return size() > MAX_THUMBNAILS;
+        }
+    };
+
+    /**
+     * Photos decoded last, by URL and size, in access order
+     */
+    private final LinkedHashMap<String, Bitmap> mPhotos =
+            new LinkedHashMap<String, Bitmap>(MAX_PHOTOS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+            return size() > MAX_PHOTOS;
+        }
+    };
+
+    /**
+     * Thumbnails being downloaded, by URL
+     */
+    private final HashMap<String, Future<?>> mPending = new HashMap<String, Future<?>>();
+
+    /**
+     * The URL of the thumbnail each view is waiting for
+     */
+    private final WeakHashMap<ImageView, String> mTargets = new WeakHashMap<ImageView, String>();
+
+    public static ImageLoader getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageLoader();
+        }
+        return sInstance;
+    }
+
+    private ImageLoader() {
+    }
+
+    /**
+     * Returns the thumbnail downloaded from the specified URL, if it is still in memory.
+     *
+     * @param url The location of the thumbnail
+     * @return The thumbnail, or null if it was not downloaded or was evicted
+     */
+    public Bitmap getThumbnail(String url) {
+        return mThumbnails.get(url);
+    }
+
+    /**
+     * Displays the specified thumbnail in a view. The view is cleared and the
+     * thumbnail downloaded in the background if it is not in memory. A view that is
+     * reused for another thumbnail before the download completes is not updated.
+     *
+     * @param view The view to display the thumbnail in
+     * @param url The location of the thumbnail
+     */
+    public void loadThumbnail(ImageView view, String url) {
+        final String previous = mTargets.remove(view);
+
+        final Bitmap bitmap = mThumbnails.get(url);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+        } else {
+            view.setImageDrawable(null);
+            mTargets.put(view, url);
+            if (!mPending.containsKey(url)) {
+                mPending.put(url, mExecutor.submit(new FetchTask(url)));
+            }
+        }
+
+        if (previous != null && !previous.equals(url) && !mTargets.containsValue(previous)) {
+            // No view needs the previous thumbnail anymore
+            final Future<?> pending = mPending.remove(previous);
+            if (pending != null) {
+                pending.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Loads a photo, from memory or the disk cache if possible, or from the network.
+     * The photo is decoded at the smallest power of two subsample still larger than
+     * the specified size. The callback is invoked on the UI thread, right away if the
+     * photo is in memory.
+     * 
+     * @param context Used to find the cache directory
+     * @param url The location of the photo
+     * @param width The width the photo will be displayed at
+     * @param height The height the photo will be displayed at
+     * @param callback Receives the photo
+     * @return A handle to cancel the load
+     */
+    public PhotoRequest loadPhoto(Context context, String url, int width, int height,
+            PhotoCallback callback) {
+        final PhotoRequest request = new PhotoRequest(url, width, height, callback,
+                new File(context.getCacheDir(), PHOTO_CACHE_DIRECTORY));
+
+        final Bitmap bitmap = mPhotos.get(request.mKey);
+        if (bitmap != null) {
+            callback.onPhotoLoaded(bitmap);
+        } else {
+            request.mFuture = mPhotoExecutor.submit(request);
+        }
+        return request;
+    }
+
+    /**
+     * Called on the UI thread when a download completes. Updates the views waiting
+     * for the thumbnail.
+     */
+    private void onThumbnailLoaded(String url, Bitmap bitmap) {
+        mPending.remove(url);
+        if (bitmap != null) {
+            mThumbnails.put(url, bitmap);
+        }
+
+        final Iterator<Map.Entry<ImageView, String>> targets = mTargets.entrySet().iterator();
+        while (targets.hasNext()) {
+            final Map.Entry<ImageView, String> target = targets.next();
+            if (url.equals(target.getValue())) {
+                if (bitmap != null) {
+                    target.getKey().setImageBitmap(bitmap);
+                }
+                targets.remove();
+            }
+        }
+    }
+
+    /**
+     * A photo loaded by {@link ImageLoader#loadPhoto(Context, String, int, int, PhotoCallback)}.
+     */
+    public class PhotoRequest implements Runnable {
+        private final String mUrl;
+        private final String mKey;
+        private final int mWidth;
+        private final int mHeight;
+        private final PhotoCallback mCallback;
+        private final File mDirectory;
+
+        private volatile boolean mCancelled;
+        private volatile HttpGet mGet;
+        private Future<?> mFuture;
+
+        PhotoRequest(String url, int width, int height, PhotoCallback callback,
+                File directory) {
+            mUrl = url;
+            mKey = url + '@' + width + 'x' + height;
+            mWidth = width;
+            mHeight = height;
+            mCallback = callback;
+            mDirectory = directory;
+        }
+
+        /**
+         * Cancels the load. The download is aborted if it has started, and the
+         * callback is not invoked.
+         */
+        public void cancel() {
+            mCancelled = true;
+            // Interrupting the thread does not unblock a read from the network
+            final HttpGet get = mGet;
+            if (get != null) {
+                get.abort();
+            }
+            if (mFuture != null) {
+                mFuture.cancel(true);
+            }
+        }
+
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+
+            final File file = new File(mDirectory, getFileName(mUrl));
+            if (file.exists()) {
+                // Keep recently used photos when trimming the cache
+                file.setLastModified(System.currentTimeMillis());
+            } else if (!download(file)) {
+                post(null);
+                return;
+            }
+
+            post(mCancelled ? null : BitmapUtils.decodeFile(file, mWidth, mHeight));
+        }
+
+        private void post(final Bitmap bitmap) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (bitmap != null) {
+                        mPhotos.put(mKey, bitmap);
+                    }
+                    if (!mCancelled) {
+                        mCallback.onPhotoLoaded(bitmap);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Downloads the photo into the specified file. The download is aborted by
+         * {@link #cancel()}. Nothing is left on disk if the download fails.
+         */
+        private boolean download(File file) {
+            mDirectory.mkdirs();
+            final File temp = new File(mDirectory, file.getName() + ".tmp");
+
+            HttpGet get = null;
+            InputStream in = null;
+            OutputStream out = null;
+            boolean success = false;
+            try {
+                get = new HttpGet(mUrl);
+                mGet = get;
+                if (mCancelled) {
+                    // cancel() may have run before mGet was set
+                    return false;
+                }
+
+                final HttpResponse response = mPhotoClient.execute(get);
+                if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                    throw new IOException("Unexpected response " + response.getStatusLine());
+                }
+                in = response.getEntity().getContent();
+                out = new FileOutputStream(temp);
+
+                final byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (mCancelled) {
+                        return false;
+                    }
+                    out.write(buffer, 0, read);
+                }
+                out.close();
+                out = null;
+
+                success = temp.renameTo(file);
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    Log.e(TAG, "Could not download photo from: " + mUrl);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid photo URL: " + mUrl);
+            } finally {
+                if (!success && get != null) {
+                    // Closes the connection instead of reading the rest of the photo
+                    get.abort();
+                }
+                BitmapUtils.closeStream(in);
+                BitmapUtils.closeStream(out);
+                if (!success) {
+                    temp.delete();
+                }
+            }
+
+            if (success) {
+                trimDiskCache(mDirectory);
+            }
+            return success;
+        }
+    }
+
+    /**
+     * Deletes the least recently used photos until the disk cache fits in
+     * {@link #MAX_DISK_CACHE_SIZE}.
+     */
+    private static void trimDiskCache(File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_DISK_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                final long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && size > MAX_DISK_CACHE_SIZE; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    /**
+     * @return The name of the file caching the photo at the specified URL
+     */
+    private static String getFileName(String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes());
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    /**
+     * Downloads a single thumbnail on one of the fetch threads.
+     */
+    private class FetchTask implements Runnable {
+        private final String mUrl;
+
+        public FetchTask(String url) {
+            mUrl = url;
+        }
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final Bitmap bitmap = BitmapUtils.loadBitmap(mUrl);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    onThumbnailLoaded(mUrl, bitmap);
+                }
+            });
+        }
+    }
+}
@@ -18,33 +18,54 @@ package com.google.android.panoramio;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import com.google.android.maps.GeoPoint;
 
 import android.content.Context;
 import android.database.DataSetObserver;
-import android.graphics.Bitmap;
 import android.os.Handler;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class is responsible for downloading and parsing the search results for
- * a particular area. All of the work is done on a separate thread, and progress
+ * a particular area. All of the work is done on separate threads, and progress
  * is reported back through the DataSetObserver set in
  * {@link #addObserver(DataSetObserver). State is held in memory by in memory
  * maintained by a single instance of the ImageManager class.
+ * 
+ * Results are downloaded and cached by tile (see {@link TileCache}). A search shows
+ * the cached results of the tiles covering its area right away and only downloads
+ * the tiles that are not in the cache. Pages are downloaded by a small pool of
+ * threads sharing one HTTP client, so panning over new tiles queues their pages
+ * instead of opening more connections. Pages of tiles that leave the search area
+ * are cancelled.
  */
 public class ImageManager {
    private static final String TAG = "Panoramio";
@@ -52,13 +73,51 @@ public class ImageManager {
     /**
      * Base URL for Panoramio's web API
      */
-    private static final String THUMBNAIL_URL = "//www.panoramio.com/map/get_panoramas.php?order=popularity&set=public&from=0&to=20&miny=%f&minx=%f&maxy=%f&maxx=%f&size=thumbnail";
+    private static final String THUMBNAIL_URL = "//www.panoramio.com/map/get_panoramas.php?order=popularity&set=public&from=%d&to=%d&miny=%f&minx=%f&maxy=%f&maxx=%f&size=thumbnail";
+
+    /**
+     * Number of results requested at a time
+     */
+    private static final int PAGE_SIZE = 20;
+
+    /**
+     * Maximum number of results loaded for an area
+     */
+    private static final int MAX_RESULTS = 500;
+
+    /**
+     * Maximum number of results loaded for a tile
+     */
+    private static final int MAX_TILE_RESULTS = 200;
+
+    /**
+     * Number of parsed items after which they are handed to the UI thread right away
+     */
+    private static final int BATCH_SIZE = 10;
+
+    /**
+     * Maximum time, in milliseconds, a parsed item waits before being handed to the
+     * UI thread. This is about the duration of one frame.
+     */
+    private static final long BATCH_DELAY = 16;
+
+    /**
+     * Number of threads, and of connections, downloading pages of results
+     */
+    private static final int NETWORK_THREADS = 2;
 
     /**
      * Used to post results back to the UI thread
      */
     private Handler mHandler = new Handler();
 
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(NETWORK_THREADS);
+
+    /**
+     * Shared by the network threads
+     */
+    private final HttpClient mClient = createHttpClient();
+
     /**
      * Holds the single instance of a ImageManager that is shared by the process.
      */
@@ -72,14 +131,72 @@ public class ImageManager {
     /**
      * Observers interested in changes to the current search results
      */
-    private ArrayList<WeakReference<DataSetObserver>> mObservers = 
-            new ArrayList<WeakReference<DataSetObserver>>();
+    private CopyOnWriteArrayList<WeakReference<DataSetObserver>> mObservers = 
+            new CopyOnWriteArrayList<WeakReference<DataSetObserver>>();
+    
+    /**
+     * Items parsed by the network threads and not yet added to their tile. Also guards
+     * mPendingTiles and mFlushScheduled.
+     */
+    private final ArrayList<PanoramioItem> mPending = new ArrayList<PanoramioItem>();
+    
+    /**
+     * The tile each pending item was loaded for
+     */
+    private final ArrayList<TileCache.Tile> mPendingTiles = new ArrayList<TileCache.Tile>();
+    
+    /**
+     * Results of the areas searched so far
+     */
+    private final TileCache mTileCache = new TileCache();
+    
+    /**
+     * The tiles covering the current search area
+     */
+    private ArrayList<TileCache.Tile> mTiles = new ArrayList<TileCache.Tile>();
+    
+    /**
+     * The page queued or loading for each tile
+     */
+    private final HashMap<TileCache.Tile, PageTask> mPages =
+            new HashMap<TileCache.Tile, PageTask>();
+    
+    /**
+     * True if mFlush has been posted and has not run yet
+     */
+    private boolean mFlushScheduled;
+    
+    /**
+     * Adds the pending items in a single batch
+     */
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            if (addPending()) {
+                notifyObservers();
+            }
+        }
+    };
+    
+    /**
+     * Ids of the items in mImages, used to drop the duplicates returned when results
+     * shift between two pages
+     */
+    private HashSet<Long> mIds = new HashSet<Long>();
     
     /**
      * True if we are in the process of loading
      */
     private boolean mLoading;
     
+    
+    /**
+     * The current search area
+     */
+    private float mMinLong;
+    private float mMaxLong;
+    private float mMinLat;
+    private float mMaxLat;
+    
     private Context mContext;
     
     /**
@@ -127,17 +244,87 @@ public class ImageManager {
      * Clear all downloaded content
      */
     public void clear() {
+        mTiles = new ArrayList<TileCache.Tile>();
+        cancelPages();
+        mLoading = false;
         mImages.clear();   
+        mIds.clear();
         notifyObservers();
     }
     
     /**
-     * Add an item to and notify observers of the change.
+     * Called from a network thread for each item parsed. Items are added in batches
+     * of {@link #BATCH_SIZE}, or after {@link #BATCH_DELAY}, whichever comes first.
+     * 
+     * @param tile The tile the item was loaded for
      * @param item The item to add
      */
-    private void add(PanoramioItem item) {
-        mImages.add(item);   
-        notifyObservers();
+    private void deliver(TileCache.Tile tile, PanoramioItem item) {
+        synchronized (mPending) {
+            mPending.add(item);
+            mPendingTiles.add(tile);
+            if (mPending.size() == BATCH_SIZE) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled) {
+                mHandler.postDelayed(mFlush, BATCH_DELAY);
+                mFlushScheduled = true;
+            }
+        }
+    }
+    
+    /**
+     * Adds the pending items to their tiles, and to the current results when their tile
+     * covers the current search area.
+     * 
+     * @return True if at least one item was added to the current results
+     */
+    private boolean addPending() {
+        final ArrayList<PanoramioItem> batch;
+        final ArrayList<TileCache.Tile> tiles;
+        synchronized (mPending) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return false;
+            }
+            batch = new ArrayList<PanoramioItem>(mPending);
+            tiles = new ArrayList<TileCache.Tile>(mPendingTiles);
+            mPending.clear();
+            mPendingTiles.clear();
+        }
+
+        boolean added = false;
+        final int count = batch.size();
+        for (int i = 0; i < count; i++) {
+            final PanoramioItem item = batch.get(i);
+            final TileCache.Tile tile = tiles.get(i);
+            if (tile.add(item) && mTiles.contains(tile)) {
+                added |= show(item);
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Adds an item to the current results if it is in the search area. Items that were
+     * already added are ignored.
+     * 
+     * @return True if the item was added
+     */
+    private boolean show(PanoramioItem item) {
+        final GeoPoint location = item.getLocation();
+        final float latitude = (float) location.getLatitudeE6() / Panoramio.MILLION;
+        final float longitude = (float) location.getLongitudeE6() / Panoramio.MILLION;
+        if (latitude < mMinLat || latitude > mMaxLat ||
+                longitude < mMinLong || longitude > mMaxLong) {
+            return false;
+        }
+        if (mIds.add(item.getId())) {
+            mImages.add(item);
+            return true;
+        }
+        return false;
     }
     
     /**
@@ -156,12 +343,25 @@ public class ImageManager {
     
     /**
      * Adds an observer to be notified when the set of items held by this ImageManager changes.
+     * Observers are notified on the UI thread, but may be added from any thread.
      */
     public void addObserver(DataSetObserver observer) {
         WeakReference<DataSetObserver> obs = new WeakReference<DataSetObserver>(observer);
         mObservers.add(obs);
     }
     
+    /**
+     * Removes an observer added with {@link #addObserver(DataSetObserver)}. May be called
+     * from any thread.
+     */
+    public void removeObserver(DataSetObserver observer) {
+        for (WeakReference<DataSetObserver> weak : mObservers) {
+            if (weak.get() == observer) {
+                mObservers.remove(weak);
+            }
+        }
+    }
+    
     /**
      * Load a new set of search results for the specified area.
      * 
@@ -171,125 +371,333 @@ public class ImageManager {
      * @param maxLat The minimum latitude for the search area
      */
     public void load(float minLong, float maxLong, float minLat, float maxLat) {
-        mLoading = true;
-        new NetworkThread(minLong, maxLong, minLat, maxLat).start();
+        mMinLong = minLong;
+        mMaxLong = maxLong;
+        mMinLat = minLat;
+        mMaxLat = maxLat;
+        mTiles = mTileCache.getTiles(minLong, maxLong, minLat, maxLat);
+        cancelPages();
+        mImages.clear();
+        mIds.clear();
+
+        // Show what the cache has, and download the first page of the other tiles
+        final ArrayList<TileCache.Tile> tiles = mTiles;
+        for (TileCache.Tile tile : tiles) {
+            final ArrayList<PanoramioItem> items = tile.mItems;
+            final int count = items.size();
+            for (int i = 0; i < count; i++) {
+                show(items.get(i));
+            }
+            if (!tile.isStarted()) {
+                loadPage(tile);
+            }
+        }
+        updateLoading();
+        notifyObservers();
+    }
+    
+    /**
+     * Load the next page of search results for the current area, from the tile that
+     * has the fewest results loaded. Only one page is loaded at a time, so calling
+     * this method again while a page is loading has no effect.
+     * 
+     * @return True if a new page started loading
+     */
+    public boolean loadMore() {
+        if (mLoading || mImages.size() >= MAX_RESULTS) {
+            return false;
+        }
+
+        TileCache.Tile next = null;
+        for (TileCache.Tile tile : mTiles) {
+            if (tile.mHasMore && tile.mNextFrom < MAX_TILE_RESULTS &&
+                    (next == null || tile.mNextFrom < next.mNextFrom)) {
+                next = tile;
+            }
+        }
+        if (next == null) {
+            return false;
+        }
+        loadPage(next);
+        updateLoading();
+        return true;
+    }
+    
+    private void loadPage(TileCache.Tile tile) {
+        tile.mLoading = true;
+        final PageTask task = new PageTask(tile, tile.mNextFrom, tile.mNextFrom + PAGE_SIZE);
+        mPages.put(tile, task);
+        task.mFuture = mExecutor.submit(task);
+    }
+    
+    /**
+     * Cancels the pages of the tiles that are no longer in the search area. Their
+     * tiles can be started again by a later search.
+     */
+    private void cancelPages() {
+        final Iterator<Map.Entry<TileCache.Tile, PageTask>> pages =
+                mPages.entrySet().iterator();
+        while (pages.hasNext()) {
+            final Map.Entry<TileCache.Tile, PageTask> page = pages.next();
+            final TileCache.Tile tile = page.getKey();
+            if (!mTiles.contains(tile)) {
+                page.getValue().cancel();
+                tile.mLoading = false;
+                pages.remove();
+            }
+        }
     }
     
     /**
-     * Called when something changes in our data set. Cleans up any weak references that
-     * are no longer valid along the way.
+     * Sets mLoading if a tile of the current search area is loading.
+     */
+    private void updateLoading() {
+        mLoading = false;
+        for (TileCache.Tile tile : mTiles) {
+            mLoading |= tile.mLoading;
+        }
+    }
+    
+    /**
+     * Called on the UI thread when a page has been loaded. Pages cancelled meanwhile
+     * only contribute the items they already parsed.
+     * 
+     * @param task The page that was loaded
+     * @param to The index following the last result of the page
+     * @param hasMore True if the server has results after this page
+     */
+    private void onPageLoaded(PageTask task, int to, boolean hasMore) {
+        mHandler.removeCallbacks(mFlush);
+        final boolean added = addPending();
+        final TileCache.Tile tile = task.mTile;
+        if (mPages.get(tile) != task) {
+            if (added) {
+                notifyObservers();
+            }
+            return;
+        }
+        mPages.remove(tile);
+        tile.mLoading = false;
+        tile.mHasMore = hasMore;
+        tile.mNextFrom = to;
+        if (mTiles.contains(tile)) {
+            updateLoading();
+            notifyObservers();
+        } else if (added) {
+            notifyObservers();
+        }
+    }
+    
+    /**
+     * Called on the UI thread when something changes in our data set. Cleans up any weak
+     * references that are no longer valid along the way.
      */
     private void notifyObservers() {
-        final ArrayList<WeakReference<DataSetObserver>> observers = mObservers;
-        final int count = observers.size();
-        for (int i = count - 1; i >= 0; i--) {
-            WeakReference<DataSetObserver> weak = observers.get(i);
+        // Iterates over a snapshot, so observers can be added or removed meanwhile
+        for (WeakReference<DataSetObserver> weak : mObservers) {
             DataSetObserver obs = weak.get();
             if (obs != null) {
                 obs.onChanged();
             } else {
-                observers.remove(i);
+                mObservers.remove(weak);
             }
         }
-        
     }
     
     /**
-     * This thread does the actual work of downloading and parsing data.
-     *
+     * Creates the HTTP client shared by the network threads, with one connection
+     * per thread.
      */
-    private class NetworkThread extends Thread {
+    private static HttpClient createHttpClient() {
+        final HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(NETWORK_THREADS));
+        ConnManagerParams.setMaxTotalConnections(params, NETWORK_THREADS);
+
+        final SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 
-        private float mMinLong;
-        private float mMaxLong;
-        private float mMinLat;
-        private float mMaxLat;
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry),
+                params);
+    }
+    
+    /**
+     * This task does the actual work of downloading and parsing a page of results,
+     * on one of the network threads.
+     */
+    private class PageTask implements Runnable {
 
-        public NetworkThread(float minLong, float maxLong, float minLat, float maxLat) {
-            mMinLong = minLong;
-            mMaxLong = maxLong;
-            mMinLat = minLat;
-            mMaxLat = maxLat;
+        private final TileCache.Tile mTile;
+        private final int mFrom;
+        private final int mTo;
+        
+        /**
+         * Set when the response says more results are available
+         */
+        private boolean mHasMore;
+
+        private volatile boolean mCancelled;
+        private volatile HttpGet mGet;
+        private Future<?> mFuture;
+
+        public PageTask(TileCache.Tile tile, int from, int to) {
+            mTile = tile;
+            mFrom = from;
+            mTo = to;
+        }
+
+        /**
+         * Called on the UI thread. A queued page never starts, a page that is loading
+         * is aborted.
+         */
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+            final HttpGet get = mGet;
+            if (get != null) {
+                get.abort();
+            }
         }
 
-        @Override
         public void run() {
             
             String url = THUMBNAIL_URL;
-            url = String.format(url, mMinLat, mMinLong, mMaxLat, mMaxLong);
+            final TileCache.Tile tile = mTile;
+            url = String.format(url, mFrom, mTo, tile.mMinLat, tile.mMinLong,
+                    tile.mMaxLat, tile.mMaxLong);
+            HttpGet get = null;
+            HttpEntity entity = null;
+            boolean failed = false;
             try {
                 URI uri = new URI("http", url, null);
-                HttpGet get = new HttpGet(uri);
+                get = new HttpGet(uri);
+                mGet = get;
+                if (mCancelled) {
+                    // cancel() may have run before mGet was set
+                    get.abort();
+                }
                 
-                HttpClient client = new DefaultHttpClient();
-                HttpResponse response = client.execute(get);
-                HttpEntity entity = response.getEntity();
-                String str = convertStreamToString(entity.getContent());
-                JSONObject json = new JSONObject(str);
-                parse(json);
+                HttpResponse response = mClient.execute(get);
+                entity = response.getEntity();
+                parse(new JsonTokenizer(new InputStreamReader(entity.getContent(), "UTF-8")));
             } catch (Exception e) {
-                Log.e(TAG, e.toString());
+                if (!mCancelled) {
+                    Log.e(TAG, e.toString());
+                }
+                // Do not retry the page on every scroll, only with the next search
+                failed = true;
+                mHasMore = false;
+            } finally {
+                if (failed && get != null) {
+                    // Closes the connection instead of reading the rest of the response
+                    get.abort();
+                } else if (entity != null) {
+                    try {
+                        entity.consumeContent();
+                    } catch (IOException e) {
+                        Log.e(TAG, e.toString());
+                    }
+                }
+                final boolean hasMore = mHasMore;
+                final int to = failed ? mFrom : mTo;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        sInstance.onPageLoaded(PageTask.this, to, hasMore);
+                    }
+                });
             }
         }
         
-        private void parse(JSONObject json) {
-            try {
-                JSONArray array = json.getJSONArray("photos");
-                int count = array.length();
-                for (int i = 0; i < count; i++) {
-                    JSONObject obj = array.getJSONObject(i);
-
-                    long id = obj.getLong("photo_id");
-                    String title = obj.getString("photo_title");
-                    String owner = obj.getString("owner_name");
-                    String thumb = obj.getString("photo_file_url");
-                    String ownerUrl = obj.getString("owner_url");
-                    String photoUrl = obj.getString("photo_url");
-                    double latitude = obj.getDouble("latitude");
-                    double longitude = obj.getDouble("longitude");
-                    Bitmap b = BitmapUtils.loadBitmap(thumb);
-                    if (title == null) {
-                        title = mContext.getString(R.string.untitled);
-                    }
-
-                    final PanoramioItem item = new PanoramioItem(id, thumb, b,
-                            (int) (latitude * Panoramio.MILLION),
-                            (int) (longitude * Panoramio.MILLION), title, owner,
-                            ownerUrl, photoUrl);
-                    final boolean done = i == count - 1;
-                    mHandler.post(new Runnable() {
-                        public void run() {
-                            
-                            sInstance.mLoading = !done;
-                            sInstance.add(item);
-                        }
-                    });
+        /**
+         * Reads the response and posts each photo as soon as it has been read.
+         */
+        private void parse(JsonTokenizer json) throws IOException {
+            if (json.next() != JsonTokenizer.BEGIN_OBJECT) {
+                throw new IOException("Expected an object");
+            }
+            while (json.next() == JsonTokenizer.NAME) {
+                if (json.textEquals("photos")) {
+                    parsePhotos(json);
+                } else if (json.textEquals("has_more")) {
+                    json.next();
+                    mHasMore = json.textEquals("true");
+                } else {
+                    json.skipValue();
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
             }
         }
 
-        private String convertStreamToString(InputStream is) {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8*1024);
-            StringBuilder sb = new StringBuilder();
-     
-            String line = null;
-            try {
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line + "\n");
+        private void parsePhotos(JsonTokenizer json) throws IOException {
+            if (json.next() != JsonTokenizer.BEGIN_ARRAY) {
+                throw new IOException("Expected an array of photos");
+            }
+            while (json.next() == JsonTokenizer.BEGIN_OBJECT) {
+                final PanoramioItem item = parsePhoto(json);
+                if (item != null) {
+                    deliver(mTile, item);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            }
+        }
+
+        /**
+         * Reads the members of one photo, whose opening brace was consumed.
+         * 
+         * @return The photo, or null if the photo has no thumbnail
+         */
+        private PanoramioItem parsePhoto(JsonTokenizer json) throws IOException {
+            long id = 0;
+            String title = null;
+            String owner = null;
+            String thumb = null;
+            String ownerUrl = null;
+            String photoUrl = null;
+            double latitude = 0;
+            double longitude = 0;
+
+            while (json.next() == JsonTokenizer.NAME) {
+                if (json.textEquals("photo_id")) {
+                    json.next();
+                    id = json.getLong();
+                } else if (json.textEquals("photo_title")) {
+                    json.next();
+                    title = json.getString();
+                } else if (json.textEquals("owner_name")) {
+                    json.next();
+                    owner = json.getString();
+                } else if (json.textEquals("photo_file_url")) {
+                    json.next();
+                    thumb = json.getString();
+                } else if (json.textEquals("owner_url")) {
+                    json.next();
+                    ownerUrl = json.getString();
+                } else if (json.textEquals("photo_url")) {
+                    json.next();
+                    photoUrl = json.getString();
+                } else if (json.textEquals("latitude")) {
+                    json.next();
+                    latitude = json.getDouble();
+                } else if (json.textEquals("longitude")) {
+                    json.next();
+                    longitude = json.getDouble();
+                } else {
+                    json.skipValue();
                 }
             }
-     
-            return sb.toString();
+
+            if (thumb == null) {
+                return null;
+            }
+            if (title == null) {
+                title = mContext.getString(R.string.untitled);
+            }
+
+            return new PanoramioItem(id, thumb,
+                    (int) (latitude * Panoramio.MILLION),
+                    (int) (longitude * Panoramio.MILLION), title, owner,
+                    ownerUrl, photoUrl);
         }
 
     }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a JSON document one token at a time, without building a tree of the
+ * document. Characters are read through a single buffer and the text of each token
+ * is accumulated in a single builder, both reused for the whole document, so only
+ * the values that are actually kept by the caller are turned into Strings.
+ *
+ * Separators are not validated: the tokenizer expects a well formed document.
+ */
+public class JsonTokenizer {
+    public static final int END_DOCUMENT = 0;
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int BEGIN_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+
+    /**
+     * The name of an object member. The value follows.
+     */
+    public static final int NAME = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+
+    /**
+     * true, false or null
+     */
+    public static final int LITERAL = 8;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+
+    /**
+     * Text of the current name or value
+     */
+    private final StringBuilder mText = new StringBuilder();
+    private int mToken = -1;
+
+    public JsonTokenizer(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return The type of the token, for instance {@link #BEGIN_OBJECT}
+     * @throws IOException If the document cannot be read or is malformed
+     */
+    public int next() throws IOException {
+        mText.setLength(0);
+
+        int c = nextSignificant();
+        switch (c) {
+        case -1:
+            return mToken = END_DOCUMENT;
+        case '{':
+            return mToken = BEGIN_OBJECT;
+        case '}':
+            return mToken = END_OBJECT;
+        case '[':
+            return mToken = BEGIN_ARRAY;
+        case ']':
+            return mToken = END_ARRAY;
+        case '"':
+            readString();
+            // A string followed by a colon is the name of a member
+            c = nextSignificant();
+            if (c == ':') {
+                return mToken = NAME;
+            }
+            if (c != -1) {
+                mPosition--;
+            }
+            return mToken = STRING;
+        default:
+            mText.append((char) c);
+            readLiteral();
+            final char first = mText.charAt(0);
+            if (first == '-' || (first >= '0' && first <= '9')) {
+                return mToken = NUMBER;
+            }
+            return mToken = LITERAL;
+        }
+    }
+
+    /**
+     * Skips the next value, including all of its content if it is an object or an
+     * array. Typically invoked after reading a {@link #NAME} the caller is not
+     * interested in.
+     *
+     * @throws IOException If the document cannot be read or is malformed
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (next()) {
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                depth++;
+                break;
+            case END_OBJECT:
+            case END_ARRAY:
+                depth--;
+                break;
+            case END_DOCUMENT:
+                throw new IOException("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * @return True if the text of the current token is the specified string. This does
+     *         not allocate a String for the token.
+     */
+    public boolean textEquals(String s) {
+        final StringBuilder text = mText;
+        final int length = s.length();
+        if (text.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The current value as a String, or null if the value is the null literal
+     */
+    public String getString() {
+        if (mToken == LITERAL && textEquals("null")) {
+            return null;
+        }
+        return mText.toString();
+    }
+
+    /**
+     * @return The current value as a long. Numbers sent as strings are accepted.
+     * @throws IOException If the value is not an integer
+     */
+    public long getLong() throws IOException {
+        final StringBuilder text = mText;
+        final int length = text.length();
+        if (length == 0) {
+            throw new IOException("Expected a number");
+        }
+
+        final boolean negative = text.charAt(0) == '-';
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IOException("Expected an integer but was " + text);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return The current value as a double. Numbers sent as strings are accepted.
+     * @throws IOException If the value is not a number
+     */
+    public double getDouble() throws IOException {
+        try {
+            return Double.parseDouble(mText.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Expected a number but was " + mText);
+        }
+    }
+
+    /**
+     * Returns the next character that is not white space or a comma, or -1 at the
+     * end of the document.
+     */
+    private int nextSignificant() throws IOException {
+        while (true) {
+            final int c = read();
+            switch (c) {
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\r':
+            case ',':
+                continue;
+            default:
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote was consumed.
+     */
+    private void readString() throws IOException {
+        final StringBuilder text = mText;
+        while (true) {
+            // Copy runs of plain characters straight from the buffer
+            int start = mPosition;
+            final char[] buffer = mBuffer;
+            while (mPosition < mLimit) {
+                final char c = buffer[mPosition];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                mPosition++;
+            }
+            text.append(buffer, start, mPosition - start);
+
+            final int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                text.append(readEscape());
+            } else if (c == -1) {
+                throw new IOException("Unterminated string");
+            } else {
+                // The buffer was empty; read() refilled it
+                text.append((char) c);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        final int c = read();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                final int digit = Character.digit(read(), 16);
+                if (digit == -1) {
+                    throw new IOException("Malformed unicode escape");
+                }
+                value = (value << 4) | digit;
+            }
+            return (char) value;
+        case -1:
+            throw new IOException("Unterminated escape sequence");
+        default:
+            // \" \\ \/
+            return (char) c;
+        }
+    }
+
+    /**
+     * Reads the rest of a number, true, false or null.
+     */
+    private void readLiteral() throws IOException {
+        while (true) {
+            final int c = read();
+            switch (c) {
+            case -1:
+                return;
+            case ',':
+            case ':':
+            case '}':
+            case ']':
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\r':
+                mPosition--;
+                return;
+            default:
+                mText.append((char) c);
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit) {
+            final int count = mReader.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0) {
+                return -1;
+            }
+            mPosition = 0;
+            mLimit = count;
+        }
+        return mBuffer[mPosition++];
+    }
+}
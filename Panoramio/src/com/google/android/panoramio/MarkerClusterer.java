@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import com.google.android.maps.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Groups the items displayed on a map into clusters, one per cell of a grid laid
+ * over the map at a given zoom level. The grid is anchored to the world rather than
+ * to the screen, so the clusters of a zoom level do not change when the map is panned
+ * and can be computed once per zoom level. Clusters are cached until the items change.
+ *
+ * All the methods of this class must be called from the UI thread.
+ */
+public class MarkerClusterer {
+
+    /**
+     * Size, in pixels, of the tiles of the map at zoom level 1
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * A group of items shown as a single marker, at the average location of the items
+     */
+    public static class Cluster {
+        private int mCount;
+        private long mLatitudeE6;
+        private long mLongitudeE6;
+        private GeoPoint mLocation;
+
+        private void add(PanoramioItem item) {
+            final GeoPoint location = item.getLocation();
+            mLatitudeE6 += location.getLatitudeE6();
+            mLongitudeE6 += location.getLongitudeE6();
+            mCount++;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public GeoPoint getLocation() {
+            if (mLocation == null) {
+                mLocation = new GeoPoint((int) (mLatitudeE6 / mCount),
+                        (int) (mLongitudeE6 / mCount));
+            }
+            return mLocation;
+        }
+    }
+
+    private final int mCellSize;
+
+    private ArrayList<PanoramioItem> mItems = new ArrayList<PanoramioItem>();
+
+    /**
+     * Position of each item on the map, as a fraction of the width and height of the
+     * whole world. Computed once per set of items, and scaled for each zoom level.
+     */
+    private double[] mX = new double[0];
+    private double[] mY = new double[0];
+
+    /**
+     * Clusters computed so far, by zoom level
+     */
+    private final HashMap<Integer, ArrayList<Cluster>> mClusters =
+            new HashMap<Integer, ArrayList<Cluster>>();
+
+    /**
+     * @param cellSize The size, in pixels, of the cells of the grid
+     */
+    public MarkerClusterer(int cellSize) {
+        mCellSize = cellSize;
+    }
+
+    /**
+     * Replaces the items to cluster and discards the clusters computed so far.
+     *
+     * @param items The items to cluster
+     */
+    public void setItems(ArrayList<PanoramioItem> items) {
+        final int count = items.size();
+        final double[] x = new double[count];
+        final double[] y = new double[count];
+
+        for (int i = 0; i < count; i++) {
+            final GeoPoint location = items.get(i).getLocation();
+            final double longitude = location.getLongitudeE6() / (double) Panoramio.MILLION;
+            final double latitude = Math.toRadians(
+                    location.getLatitudeE6() / (double) Panoramio.MILLION);
+
+            // Mercator projection, as used by the map
+            x[i] = (longitude + 180.0) / 360.0;
+            y[i] = (1.0 - Math.log(Math.tan(latitude) + 1.0 / Math.cos(latitude)) / Math.PI)
+                    / 2.0;
+        }
+
+        mItems = items;
+        mX = x;
+        mY = y;
+        mClusters.clear();
+    }
+
+    /**
+     * Returns the clusters of the items at the specified zoom level. The clusters are
+     * only computed the first time a zoom level is requested after the items changed.
+     *
+     * @param zoom The zoom level of the map
+     * @return The clusters, in no particular order
+     */
+    public ArrayList<Cluster> getClusters(int zoom) {
+        ArrayList<Cluster> clusters = mClusters.get(zoom);
+        if (clusters == null) {
+            clusters = cluster(zoom);
+            mClusters.put(zoom, clusters);
+        }
+        return clusters;
+    }
+
+    private ArrayList<Cluster> cluster(int zoom) {
+        // Number of cells across the world at this zoom level
+        final double cells = ((double) TILE_SIZE * (1L << (zoom - 1))) / mCellSize;
+
+        final ArrayList<PanoramioItem> items = mItems;
+        final double[] x = mX;
+        final double[] y = mY;
+        final int count = items.size();
+
+        final HashMap<Long, Cluster> cellClusters = new HashMap<Long, Cluster>();
+        final ArrayList<Cluster> clusters = new ArrayList<Cluster>();
+        for (int i = 0; i < count; i++) {
+            final long key = ((long) (x[i] * cells) << 32) | ((long) (y[i] * cells) & 0xffffffffL);
+            Cluster cluster = cellClusters.get(key);
+            if (cluster == null) {
+                cluster = new Cluster();
+                cellClusters.put(key, cluster);
+                clusters.add(cluster);
+            }
+            cluster.add(items.get(i));
+        }
+        return clusters;
+    }
+}
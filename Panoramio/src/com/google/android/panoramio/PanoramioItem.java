@@ -24,13 +24,13 @@ import android.os.Parcelable;
 
 /**
  * Holds one item returned from the Panoramio server. This includes
- * the bitmap along with other meta info.
+ * the location of the thumbnail along with other meta info. The thumbnail
+ * itself is held by the {@link ImageLoader}, which may evict it.
  *
  */
 public class PanoramioItem implements Parcelable {
     
     private long mId;
-    private Bitmap mBitmap;
     private GeoPoint mLocation;
     private String mTitle;
     private String mOwner;
@@ -40,7 +40,6 @@ public class PanoramioItem implements Parcelable {
     
     public PanoramioItem(Parcel in) {
         mId = in.readLong();
-        mBitmap = Bitmap.CREATOR.createFromParcel(in);
         mLocation = new GeoPoint(in.readInt(), in.readInt());
         mTitle = in.readString();
         mOwner = in.readString();
@@ -49,9 +48,9 @@ public class PanoramioItem implements Parcelable {
         mPhotoUrl = in.readString();
     }
     
-    public PanoramioItem(long id, String thumbUrl, Bitmap b, int latitudeE6, int longitudeE6,
+    public PanoramioItem(long id, String thumbUrl, int latitudeE6, int longitudeE6,
             String title, String owner, String ownerUrl, String photoUrl) {
-        mBitmap = b;
+        mId = id;
         mLocation = new GeoPoint(latitudeE6, longitudeE6);
         mTitle = title;
         mOwner = owner;
@@ -64,8 +63,14 @@ public class PanoramioItem implements Parcelable {
         return mId;
     }
     
+    /**
+     * The thumbnail is looked up in the {@link ImageLoader} with the thumbnail URL as
+     * the key, so it is shared with the copies of this item made through a Parcel.
+     * 
+     * @return The thumbnail of this item, or null if it is not in memory
+     */
     public Bitmap getBitmap() {
-        return mBitmap;
+        return ImageLoader.getInstance().getThumbnail(mThumbUrl);
     }
 
     public GeoPoint getLocation() {
@@ -108,8 +113,8 @@ public class PanoramioItem implements Parcelable {
     }
 
     public void writeToParcel(Parcel parcel, int flags) {
+        // The thumbnail itself stays in the ImageLoader; mThumbUrl is its key
         parcel.writeLong(mId);
-        mBitmap.writeToParcel(parcel, 0);
         parcel.writeInt(mLocation.getLatitudeE6());
         parcel.writeInt(mLocation.getLongitudeE6());
         parcel.writeString(mTitle);
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.panoramio;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches search results by geographical tile. The world is divided into a grid of
+ * square tiles, in degrees, at each level: a tile at level n spans 360 / 2^n degrees.
+ * A search area is covered with tiles no larger than the area, so that once the
+ * results of each tile are clipped to the area, the first pages of the tiles still
+ * fill at least a page on average. Overlapping searches share their tiles.
+ * The least recently used tiles are evicted first.
+ *
+ * All the methods of this class must be called from the UI thread.
+ */
+public class TileCache {
+
+    /**
+     * Coarsest and finest levels used to cover a search area
+     */
+    private static final int MIN_LEVEL = 2;
+    private static final int MAX_LEVEL = 16;
+
+    /**
+     * Maximum number of tiles kept in memory
+     */
+    private static final int MAX_TILES = 64;
+
+    /**
+     * Maximum number of tiles covering a search area. Very elongated areas are
+     * covered with larger tiles to stay under this limit.
+     */
+    private static final int MAX_SEARCH_TILES = 12;
+
+    /**
+     * Time, in milliseconds, after which the results of a tile are loaded again
+     */
+    private static final long TILE_TTL = 30 * 60 * 1000;
+
+    /**
+     * The results of one tile. The bounds of a tile may be read from any thread;
+     * everything else belongs to the UI thread.
+     */
+    public static class Tile {
+        final float mMinLong;
+        final float mMaxLong;
+        final float mMinLat;
+        final float mMaxLat;
+
+        final long mCreated = SystemClock.uptimeMillis();
+
+        /**
+         * Results loaded so far, in the order the server returned them
+         */
+        final ArrayList<PanoramioItem> mItems = new ArrayList<PanoramioItem>();
+        private final HashSet<Long> mIds = new HashSet<Long>();
+
+        /**
+         * Index of the first result of the next page
+         */
+        int mNextFrom;
+
+        /**
+         * True if the server has more results for this tile
+         */
+        boolean mHasMore = true;
+
+        /**
+         * True while a page of this tile is loading
+         */
+        boolean mLoading;
+
+        Tile(float minLong, float maxLong, float minLat, float maxLat) {
+            mMinLong = minLong;
+            mMaxLong = maxLong;
+            mMinLat = minLat;
+            mMaxLat = maxLat;
+        }
+
+        /**
+         * Adds a result to this tile.
+         *
+         * @return True if the result was not already in this tile
+         */
+        boolean add(PanoramioItem item) {
+            if (mIds.add(item.getId())) {
+                mItems.add(item);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return True if the first page of this tile was requested
+         */
+        boolean isStarted() {
+            return mLoading || mNextFrom > 0;
+        }
+    }
+
+    private final LinkedHashMap<Long, Tile> mTiles =
+            new LinkedHashMap<Long, Tile>(MAX_TILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+
+    /**
+     * Returns the tiles covering the specified area, creating the tiles that are not
+     * in the cache or have expired.
+     *
+     * @param minLong The minimum longitude for the search area
+     * @param maxLong The maximum longitude for the search area
+     * @param minLat The minimum latitude for the search area
+     * @param maxLat The maximum latitude for the search area
+     * @return The tiles covering the area
+     */
+    public ArrayList<Tile> getTiles(float minLong, float maxLong, float minLat, float maxLat) {
+        // Tiles about as large as a square of the same area as the search area
+        int level = getLevel((float) Math.sqrt((maxLong - minLong) * (maxLat - minLat)));
+
+        float span;
+        int minX, lastX, minY, lastY;
+        while (true) {
+            span = 360.0f / (1 << level);
+            final int maxX = (1 << level) - 1;
+            final int maxY = (1 << (level - 1)) - 1;
+            minX = clamp((int) Math.floor((minLong + 180.0f) / span), maxX);
+            lastX = clamp((int) Math.floor((maxLong + 180.0f) / span), maxX);
+            minY = clamp((int) Math.floor((minLat + 90.0f) / span), maxY);
+            lastY = clamp((int) Math.floor((maxLat + 90.0f) / span), maxY);
+            if (level == MIN_LEVEL ||
+                    (lastX - minX + 1) * (lastY - minY + 1) <= MAX_SEARCH_TILES) {
+                break;
+            }
+            level--;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        final ArrayList<Tile> tiles = new ArrayList<Tile>();
+        for (int y = minY; y <= lastY; y++) {
+            for (int x = minX; x <= lastX; x++) {
+                final Long key = ((long) level << 56) | ((long) x << 28) | y;
+                Tile tile = mTiles.get(key);
+                if (tile == null || (!tile.mLoading && now - tile.mCreated > TILE_TTL)) {
+                    tile = new Tile(x * span - 180.0f, (x + 1) * span - 180.0f,
+                            y * span - 90.0f, (y + 1) * span - 90.0f);
+                    mTiles.put(key, tile);
+                }
+                tiles.add(tile);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return The coarsest level whose tiles are no larger than the specified span
+     */
+    private static int getLevel(float span) {
+        int level = MIN_LEVEL;
+        while (level < MAX_LEVEL && 360.0f / (1 << level) > span) {
+            level++;
+        }
+        return level;
+    }
+
+    private static int clamp(int value, int max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+}
@@ -26,8 +26,7 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.util.Log;
+import android.view.Display;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -39,8 +38,6 @@ import android.widget.TextView;
  * Activity which displays a single image.
  */
 public class ViewImage extends Activity {
-    private static final String TAG = "Panoramio";
-
     private static final int MENU_RADAR = Menu.FIRST + 1;
 
     private static final int MENU_MAP = Menu.FIRST + 2;
@@ -53,7 +50,10 @@ public class ViewImage extends Activity {
 
     PanoramioItem mItem;
 
-    private Handler mHandler;
+    /**
+     * The load of the photo, cancelled when the activity goes away
+     */
+    private ImageLoader.PhotoRequest mRequest;
 
     private ImageView mImage;
 
@@ -81,8 +81,6 @@ public class ViewImage extends Activity {
         mMapZoom = i.getIntExtra(ImageManager.ZOOM_EXTRA, Integer.MIN_VALUE);
         mMapLatitudeE6 = i.getIntExtra(ImageManager.LATITUDE_E6_EXTRA, Integer.MIN_VALUE);
         mMapLongitudeE6 = i.getIntExtra(ImageManager.LONGITUDE_E6_EXTRA, Integer.MIN_VALUE);
-        
-        mHandler = new Handler();
 
         mContent = findViewById(R.id.content);
         mImage = (ImageView) findViewById(R.id.image);
@@ -92,7 +90,29 @@ public class ViewImage extends Activity {
         mContent.setVisibility(View.GONE);
         getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
                 Window.PROGRESS_VISIBILITY_ON);
-        new LoadThread().start();
+
+        // Decode the photo no larger than necessary to fill the screen
+        final Display display = getWindowManager().getDefaultDisplay();
+        String uri = mItem.getThumbUrl();
+        uri = uri.replace("thumbnail", "medium");
+        mRequest = ImageLoader.getInstance().loadPhoto(this, uri,
+                display.getWidth(), display.getHeight(), new ImageLoader.PhotoCallback() {
+            public void onPhotoLoaded(Bitmap b) {
+                mImage.setImageBitmap(b);
+                mTitle.setText(mItem.getTitle());
+                mOwner.setText(mItem.getOwner());
+                mContent.setVisibility(View.VISIBLE);
+                getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
+                        Window.PROGRESS_VISIBILITY_OFF);
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Abort the download if the photo is still loading
+        mRequest.cancel();
+        super.onDestroy();
     }
 
     @Override
@@ -173,37 +193,4 @@ public class ViewImage extends Activity {
         return null;
     }
 
-
-    /**
-     * Utility to load a larger version of the image in a separate thread.
-     *
-     */
-    private class LoadThread extends Thread {
-
-        public LoadThread() {
-        }
-
-        @Override
-        public void run() {
-            try {
-                String uri = mItem.getThumbUrl();
-                uri = uri.replace("thumbnail", "medium");
-                final Bitmap b = BitmapUtils.loadBitmap(uri);
-                mHandler.post(new Runnable() {
-                    public void run() {
-
-                        mImage.setImageBitmap(b);
-                        mTitle.setText(mItem.getTitle());
-                        mOwner.setText(mItem.getOwner());
-                        mContent.setVisibility(View.VISIBLE);
-                        getWindow().setFeatureInt(Window.FEATURE_INDETERMINATE_PROGRESS,
-                                Window.PROGRESS_VISIBILITY_OFF);
-                    }
-                });
-            } catch (Exception e) {
-                Log.e(TAG, e.toString());
-            }
-        }
-    }
-
 }
\ No newline at end of file
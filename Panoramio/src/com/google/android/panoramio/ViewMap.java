@@ -25,7 +25,10 @@ import com.google.android.maps.Overlay;
 import com.google.android.maps.Projection;
 
 import android.content.Intent;
+import android.database.DataSetObserver;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -39,8 +42,8 @@ import java.util.List;
 
 
 /**
- * Displays a custom map which shows our current location and the location
- * where the photo was taken.
+ * Displays a custom map which shows our current location, the location
+ * where the photo was taken and the locations of the other search results.
  */
 public class ViewMap extends MapActivity {
     private MapView mMapView;
@@ -49,6 +52,27 @@ public class ViewMap extends MapActivity {
 
     ArrayList<PanoramioItem> mItems = null;
 
+    /**
+     * Size, in pixels, of the cells used to group nearby search results
+     */
+    private static final int CLUSTER_CELL_SIZE = 48;
+
+    private ImageManager mImageManager;
+
+    private MarkerClusterer mClusterer = new MarkerClusterer(CLUSTER_CELL_SIZE);
+
+    /**
+     * Regroups the search results when they change. Held here because the
+     * {@link ImageManager} only keeps a weak reference to it.
+     */
+    private DataSetObserver mObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            updateClusters();
+            mMapView.invalidate();
+        }
+    };
+
     private PanoramioItem mItem;
 
     private Drawable mMarker;
@@ -87,8 +111,13 @@ public class ViewMap extends MapActivity {
         int mapLatitudeE6 = i.getIntExtra(ImageManager.LATITUDE_E6_EXTRA, Integer.MIN_VALUE);
         int mapLongitudeE6 = i.getIntExtra(ImageManager.LONGITUDE_E6_EXTRA, Integer.MIN_VALUE);
         
+        mImageManager = ImageManager.getInstance(this);
+        mImageManager.addObserver(mObserver);
+        updateClusters();
+
         final List<Overlay> overlays = mMapView.getOverlays();
         overlays.add(mMyLocationOverlay);
+        overlays.add(new ClusterOverlay());
         overlays.add(new PanoramioOverlay());
         
         final MapController controller = mMapView.getController();
@@ -123,6 +152,25 @@ public class ViewMap extends MapActivity {
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        mImageManager.removeObserver(mObserver);
+        super.onDestroy();
+    }
+
+    /**
+     * Hands the current search results to the clusterer.
+     */
+    private void updateClusters() {
+        final ImageManager manager = mImageManager;
+        final int count = manager.size();
+        final ArrayList<PanoramioItem> items = new ArrayList<PanoramioItem>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(manager.get(i));
+        }
+        mClusterer.setItems(items);
+    }
+
     /**
      * Get the zoom controls and add them to the bottom of the map
      */
@@ -140,6 +188,54 @@ public class ViewMap extends MapActivity {
         return false;
     }
     
+    /**
+     * Overlay displaying the search results, one pushpin per cluster of nearby
+     * results. Clusters of more than one result are labelled with their size.
+     */
+    public class ClusterOverlay extends Overlay {
+        private final Point mPoint = new Point();
+        private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        public ClusterOverlay() {
+            mPaint.setColor(Color.WHITE);
+            mPaint.setTextAlign(Paint.Align.CENTER);
+            mPaint.setTextSize(14.0f);
+        }
+
+        @Override
+        public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+            if (shadow) {
+                return;
+            }
+
+            final ArrayList<MarkerClusterer.Cluster> clusters =
+                    mClusterer.getClusters(mapView.getZoomLevel());
+            final Projection p = mapView.getProjection();
+            final Point point = mPoint;
+            final int width = mapView.getWidth();
+            final int height = mapView.getHeight();
+
+            final int count = clusters.size();
+            for (int i = 0; i < count; i++) {
+                final MarkerClusterer.Cluster cluster = clusters.get(i);
+                p.toPixels(cluster.getLocation(), point);
+
+                // Skip the clusters whose pushpin would be off screen
+                final int x = point.x + mMarkerXOffset;
+                final int y = point.y + mMarkerYOffset;
+                if (x > width || y > height || x < -CLUSTER_CELL_SIZE || y < -CLUSTER_CELL_SIZE) {
+                    continue;
+                }
+
+                drawAt(canvas, mMarker, x, y, false);
+                if (cluster.getCount() > 1) {
+                    canvas.drawText(String.valueOf(cluster.getCount()), point.x,
+                            point.y + mMarkerYOffset / 2, mPaint);
+                }
+            }
+        }
+    }
+
     /**
      * Custom overlay to display the Panoramio pushpin
      */
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of mutable Bitmaps, matched by dimension and configuration. Bitmaps that are
+ * no longer displayed can be {@link #release(android.graphics.Bitmap) released} to the
+ * pool and later {@link #obtain(int, int, android.graphics.Bitmap.Config) obtained}
+ * again instead of allocating new pixel memory. The pool is bounded by a size in bytes;
+ * when it is full, the oldest Bitmaps are dropped.
+ *
+ * The pool is expected to hold a few dozen Bitmaps at most and is searched linearly,
+ * which avoids allocating lookup keys.
+ *
+ * This class is thread safe.
+ */
+final class BitmapPool {
+    private static final int MAX_POOL_SIZE = 512 * 1024;
+
+    private static final BitmapPool sInstance = new BitmapPool(MAX_POOL_SIZE);
+
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+    private final int mMaxSize;
+    private int mSize;
+
+    private int mAllocationCount;
+    private int mReuseCount;
+    private int mDropCount;
+
+    private BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the unique instance of this class.
+     *
+     * @return The unique instance of this class.
+     */
+    static BitmapPool get() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a mutable Bitmap of the specified dimension and configuration. The
+     * Bitmap is taken from the pool and cleared to transparent if possible, or newly
+     * allocated otherwise.
+     *
+     * @param width The width of the Bitmap.
+     * @param height The height of the Bitmap.
+     * @param config The configuration of the Bitmap.
+     *
+     * @return A mutable, transparent Bitmap.
+     */
+    Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+
+        synchronized (this) {
+            final ArrayList<Bitmap> bitmaps = mBitmaps;
+            for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                final Bitmap candidate = bitmaps.get(i);
+                if (candidate.getWidth() == width && candidate.getHeight() == height &&
+                        candidate.getConfig() == config) {
+                    bitmaps.remove(i);
+                    mSize -= sizeOf(candidate);
+                    bitmap = candidate;
+                    break;
+                }
+            }
+
+            if (bitmap != null) {
+                mReuseCount++;
+            } else {
+                mAllocationCount++;
+            }
+        }
+
+        if (bitmap != null) {
+            bitmap.eraseColor(0);
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Gives the specified Bitmap back to the pool. The Bitmap must not be used by the
+     * caller, nor displayed, after this method is invoked.
+     *
+     * @param bitmap The Bitmap to release. Immutable and recycled Bitmaps are ignored.
+     */
+    synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            mDropCount++;
+            return;
+        }
+
+        while (mSize + size > mMaxSize && mBitmaps.size() > 0) {
+            mSize -= sizeOf(mBitmaps.remove(0));
+            mDropCount++;
+        }
+
+        mBitmaps.add(bitmap);
+        mSize += size;
+    }
+
+    synchronized int getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    synchronized int getDropCount() {
+        return mDropCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mSize + "/" + mMaxSize + ", count=" + mBitmaps.size() +
+                ", allocations=" + mAllocationCount + ", reuses=" + mReuseCount +
+                ", drops=" + mDropCount + "]";
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
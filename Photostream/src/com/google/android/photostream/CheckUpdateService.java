@@ -32,20 +32,46 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * CheckUpdateService checks every 24 hours if updates have been made to the photostreams
- * of the current contacts. This service simply polls an RSS feed and compares the
+ * CheckUpdateService checks if updates have been made to the photostreams of the
+ * current contacts. This service simply polls an RSS feed and compares the
  * modification timestamp with the one stored in the database.
+ *
+ * Each contact is checked at its own interval, stored in the database. The interval
+ * of a contact is halved every time new photos are found, down to
+ * {@link #MIN_CHECK_INTERVAL}, and doubled every time nothing new is found, up to
+ * {@link #MAX_CHECK_INTERVAL}. A single alarm wakes the service up when the first
+ * contact is due; every contact due within {@link #BATCH_WINDOW} of that time is
+ * checked in the same batch.
  */
 public class CheckUpdateService extends Service {
     private static boolean DEBUG = false;
 
-    // Check interval: every 24 hours
-    private static long UPDATES_CHECK_INTERVAL = 24 * 60 * 60 * 1000;
+    // Shortest interval between two checks of the same feed: 2 hours
+    private static final long MIN_CHECK_INTERVAL = 2 * 60 * 60 * 1000;
+    // Longest interval between two checks of the same feed: 7 days
+    private static final long MAX_CHECK_INTERVAL = 7 * 24 * 60 * 60 * 1000;
+    // Delay before checking again a feed whose check failed: 1 hour
+    private static final long RETRY_INTERVAL = 60 * 60 * 1000;
+    // Feeds due within this window of a wakeup are checked during that wakeup
+    private static final long BATCH_WINDOW = 30 * 60 * 1000;
+    // Shortest delay between two wakeups: 5 minutes
+    private static final long MIN_WAKEUP_DELAY = 5 * 60 * 1000;
+    // Maximum number of feeds downloaded at the same time
+    private static final int MAX_CONCURRENT_CHECKS = 4;
+
+    // Reads the next check time off the main thread, in the order runs are scheduled
+    private static final TaskExecutor sScheduler =
+            TaskExecutor.newSerialExecutor("CheckUpdateScheduler");
 
     private CheckForUpdatesTask mTask;
 
@@ -61,34 +87,95 @@ public class CheckUpdateService extends Service {
         if (mTask != null && mTask.getStatus() == UserTask.Status.RUNNING) {
             mTask.cancel(true);
         }
+        // The alarm fires only once, the next run must be scheduled even if this
+        // run was interrupted
+        schedule(this);
     }
 
     public IBinder onBind(Intent intent) {
         return null;
     }
 
+    /**
+     * Schedules the next run of this service, when the first contact is due. Any
+     * previously scheduled run is cancelled. Nothing is scheduled if there are
+     * no contacts, so this method must be called again when contacts are added.
+     *
+     * The database is queried on a background thread, this method can be called
+     * from the main thread.
+     *
+     * @param context The application's environment.
+     */
     static void schedule(Context context) {
+        final Context application = context.getApplicationContext();
+        sScheduler.execute(new Runnable() {
+            public void run() {
+                scheduleNow(application);
+            }
+        });
+    }
+
+    private static void scheduleNow(Context context) {
         final Intent intent = new Intent(context, CheckUpdateService.class);
         final PendingIntent pending = PendingIntent.getService(context, 0, intent, 0);
 
-        Calendar c = new GregorianCalendar();
-        c.add(Calendar.DAY_OF_YEAR, 1);
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-
         final AlarmManager alarm = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         alarm.cancel(pending);
         if (DEBUG) {
-            alarm.setRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime(),
-                    30 * 1000, pending);
-        } else {
-            alarm.setRepeating(AlarmManager.RTC, c.getTimeInMillis(),
-                    UPDATES_CHECK_INTERVAL, pending);
+            // Start one interval from now, onDestroy() reschedules and would otherwise
+            // restart the service right away, over and over
+            final long interval = 30 * 1000;
+            alarm.setRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + interval, interval, pending);
+            return;
+        }
+
+        final long nextCheck = getNextCheckTime(context);
+        if (nextCheck != -1) {
+            final long earliest = System.currentTimeMillis() + MIN_WAKEUP_DELAY;
+            alarm.set(AlarmManager.RTC, Math.max(nextCheck, earliest), pending);
+        }
+    }
+
+    /**
+     * Returns the time at which the first contact is due for a check.
+     *
+     * @param context The application's environment.
+     *
+     * @return A time in milliseconds since the epoch, or -1 if there are no contacts.
+     */
+    private static long getNextCheckTime(Context context) {
+        final UserDatabase helper = new UserDatabase(context);
+        final SQLiteDatabase database = helper.getReadableDatabase();
+
+        Cursor cursor = null;
+        try {
+            cursor = database.query(UserDatabase.TABLE_USERS,
+                    new String[] { "MIN(" + UserDatabase.COLUMN_NEXT_CHECK + ")" },
+                    null, null, null, null, null);
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            if (cursor != null) cursor.close();
+            database.close();
         }
     }
 
+    /**
+     * Computes the interval until the next check of a feed.
+     *
+     * @param interval The interval that led to the current check.
+     * @param updated True if the current check found new photos.
+     *
+     * @return The interval, in milliseconds, until the next check.
+     */
+    static long computeCheckInterval(long interval, boolean updated) {
+        if (interval <= 0) interval = UserDatabase.DEFAULT_CHECK_INTERVAL;
+        if (updated) {
+            return Math.max(MIN_CHECK_INTERVAL, interval / 2);
+        }
+        return Math.min(MAX_CHECK_INTERVAL, interval * 2);
+    }
+
     private class CheckForUpdatesTask extends UserTask<Void, Object, Void> {
         private SharedPreferences mPreferences;
         private NotificationManager mManager;
@@ -103,49 +190,144 @@ public class CheckUpdateService extends Service {
             final UserDatabase helper = new UserDatabase(CheckUpdateService.this);
             final SQLiteDatabase database = helper.getWritableDatabase();
 
+            final ArrayList<Contact> contacts = new ArrayList<Contact>();
+            final long now = System.currentTimeMillis();
+
             Cursor cursor = null;
             try {
+                // Also checks the feeds that are due soon, to save a wakeup
                 cursor = database.query(UserDatabase.TABLE_USERS,
                         new String[] { UserDatabase._ID, UserDatabase.COLUMN_NSID,
-                        UserDatabase.COLUMN_REALNAME, UserDatabase.COLUMN_LAST_UPDATE },
-                        null, null, null, null, null);
+                        UserDatabase.COLUMN_REALNAME, UserDatabase.COLUMN_LAST_UPDATE,
+                        UserDatabase.COLUMN_FEED_ETAG, UserDatabase.COLUMN_FEED_LAST_MODIFIED,
+                        UserDatabase.COLUMN_CHECK_INTERVAL },
+                        UserDatabase.COLUMN_NEXT_CHECK + "<=?",
+                        new String[] { String.valueOf(now + BATCH_WINDOW) }, null, null, null);
 
                 int idIndex = cursor.getColumnIndexOrThrow(UserDatabase._ID);
                 int realNameIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_REALNAME);
                 int nsidIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_NSID);
                 int lastUpdateIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_LAST_UPDATE);
-
-                final Flickr flickr = Flickr.get();
+                int eTagIndex = cursor.getColumnIndexOrThrow(UserDatabase.COLUMN_FEED_ETAG);
+                int lastModifiedIndex = cursor.getColumnIndexOrThrow(
+                        UserDatabase.COLUMN_FEED_LAST_MODIFIED);
+                int intervalIndex = cursor.getColumnIndexOrThrow(
+                        UserDatabase.COLUMN_CHECK_INTERVAL);
 
                 final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-                final Calendar reference = Calendar.getInstance();
 
                 while (!isCancelled() && cursor.moveToNext()) {
-                    final String nsid = cursor.getString(nsidIndex);
                     calendar.setTimeInMillis(cursor.getLong(lastUpdateIndex));
 
+                    final Calendar reference = Calendar.getInstance();
                     reference.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH),
                             calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
                             calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
 
-                    if (flickr.hasUpdates(Flickr.User.fromId(nsid), reference)) {
-                        publishProgress(nsid, cursor.getString(realNameIndex),
-                                cursor.getInt(idIndex));
-                    }
+                    final Flickr.FeedCheck check = new Flickr.FeedCheck(
+                            Flickr.User.fromId(cursor.getString(nsidIndex)), reference);
+                    check.setValidators(cursor.getString(eTagIndex),
+                            cursor.getString(lastModifiedIndex));
+
+                    contacts.add(new Contact(cursor.getInt(idIndex),
+                            cursor.getString(realNameIndex), check,
+                            cursor.getLong(intervalIndex)));
                 }
+            } finally {
+                if (cursor != null) cursor.close();
+            }
 
-                final ContentValues values = new ContentValues();
-                values.put(UserDatabase.COLUMN_LAST_UPDATE, System.currentTimeMillis());
+            try {
+                checkForUpdates(contacts);
 
-                database.update(UserDatabase.TABLE_USERS, values, null, null);
+                final long checked = System.currentTimeMillis();
+
+                database.beginTransaction();
+                try {
+                    final ContentValues values = new ContentValues();
+                    final String[] id = new String[1];
+                    for (Contact contact : contacts) {
+                        final Flickr.FeedCheck check = contact.check;
+
+                        values.clear();
+                        if (check.isCompleted()) {
+                            final long interval = computeCheckInterval(contact.interval,
+                                    check.hasUpdates());
+                            values.put(UserDatabase.COLUMN_FEED_ETAG, check.getETag());
+                            values.put(UserDatabase.COLUMN_FEED_LAST_MODIFIED,
+                                    check.getLastModified());
+                            values.put(UserDatabase.COLUMN_LAST_UPDATE, checked);
+                            values.put(UserDatabase.COLUMN_CHECK_INTERVAL, interval);
+                            values.put(UserDatabase.COLUMN_NEXT_CHECK, checked + interval);
+                        } else {
+                            // Keeps the interval and the reference date of failed checks
+                            values.put(UserDatabase.COLUMN_NEXT_CHECK,
+                                    checked + Math.min(RETRY_INTERVAL, contact.interval));
+                        }
+
+                        id[0] = String.valueOf(contact.id);
+                        database.update(UserDatabase.TABLE_USERS, values,
+                                UserDatabase._ID + "=?", id);
+                    }
+
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
             } finally {
-                if (cursor != null) cursor.close();
                 database.close();
             }
 
             return null;
         }
 
+        /**
+         * Checks the feeds of the specified contacts, with at most
+         * {@link CheckUpdateService#MAX_CONCURRENT_CHECKS} requests in flight at the
+         * same time. A notification is published as soon as a contact is found to
+         * have updates.
+         *
+         * @param contacts The contacts whose feed must be checked.
+         */
+        private void checkForUpdates(ArrayList<Contact> contacts) {
+            final Flickr flickr = Flickr.get();
+            final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_CHECKS);
+            final ExecutorCompletionService<Contact> completion =
+                    new ExecutorCompletionService<Contact>(executor);
+
+            try {
+                for (final Contact contact : contacts) {
+                    completion.submit(new Callable<Contact>() {
+                        public Contact call() {
+                            flickr.checkForUpdates(contact.check);
+                            return contact;
+                        }
+                    });
+                }
+
+                final int count = contacts.size();
+                for (int i = 0; i < count && !isCancelled(); i++) {
+                    final Contact contact;
+                    try {
+                        contact = completion.take().get();
+                    } catch (ExecutionException e) {
+                        // Only this contact failed, keep collecting the others
+                        android.util.Log.e(Flickr.LOG_TAG, "Could not check for updates",
+                                e.getCause());
+                        continue;
+                    }
+                    if (contact.check.hasUpdates()) {
+                        publishProgress(contact.check.getUser().getId(), contact.realName,
+                                contact.id);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
         @Override
         public void onProgressUpdate(Object... values) {
             if (mPreferences.getBoolean(Preferences.KEY_ENABLE_NOTIFICATIONS, true)) {
@@ -180,4 +362,21 @@ public class CheckUpdateService extends Service {
             stopSelf();
         }
     }
+
+    /**
+     * A contact whose feed is checked for updates.
+     */
+    private static class Contact {
+        final int id;
+        final String realName;
+        final Flickr.FeedCheck check;
+        final long interval;
+
+        Contact(int id, String realName, Flickr.FeedCheck check, long interval) {
+            this.id = id;
+            this.realName = realName;
+            this.check = check;
+            this.interval = interval > 0 ? interval : UserDatabase.DEFAULT_CHECK_INTERVAL;
+        }
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpParams;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the use of the HTTP connections made by {@link Flickr}. The
+ * counters record the number of requests executed, the number of connections opened,
+ * the time spent opening them (including the TLS handshake of secure connections) and
+ * the number of bytes received in response bodies.
+ *
+ * Requests that did not open a connection reused a kept-alive connection from the pool.
+ *
+ * This class is thread safe.
+ */
+final class ConnectionMetrics {
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicLong mConnectTime = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    /**
+     * Records that a request is about to be executed.
+     */
+    void onRequest() {
+        mRequestCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a socket factory that records the connections opened by the specified
+     * factory and the time they take to be established. The returned factory is a
+     * {@link org.apache.http.conn.scheme.LayeredSocketFactory} when the specified
+     * factory is one, so that HttpClient can still layer TLS over a proxy tunnel.
+     *
+     * @param factory The factory creating the actual sockets.
+     *
+     * @return A socket factory to register in place of the specified factory.
+     */
+    SocketFactory wrap(SocketFactory factory) {
+        if (factory instanceof LayeredSocketFactory) {
+            return new TimedLayeredSocketFactory((LayeredSocketFactory) factory);
+        }
+        return new TimedSocketFactory(factory);
+    }
+
+    /**
+     * Returns a stream that records the number of bytes read from the specified stream.
+     *
+     * @param in The stream to count the bytes of.
+     *
+     * @return A stream to read from in place of the specified stream.
+     */
+    InputStream wrap(InputStream in) {
+        return new CountingInputStream(in);
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Returns the number of requests that were sent on a kept-alive connection.
+     *
+     * @return The number of requests that did not open a new connection.
+     */
+    int getReusedCount() {
+        return Math.max(0, mRequestCount.get() - mConnectionCount.get());
+    }
+
+    /**
+     * Returns the average time, in milliseconds, spent opening a connection.
+     *
+     * @return The average connection setup time in milliseconds.
+     */
+    long getAverageConnectTime() {
+        final int count = mConnectionCount.get();
+        return count == 0 ? 0 : mConnectTime.get() / count;
+    }
+
+    long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionMetrics[requests=" + getRequestCount() +
+                ", connections=" + getConnectionCount() + ", reused=" + getReusedCount() +
+                ", avgConnect=" + getAverageConnectTime() + "ms, received=" +
+                getBytesReceived() + "]";
+    }
+
+    private class TimedSocketFactory implements SocketFactory {
+        private final SocketFactory mFactory;
+
+        TimedSocketFactory(SocketFactory factory) {
+            mFactory = factory;
+        }
+
+        public Socket createSocket() throws IOException {
+            return mFactory.createSocket();
+        }
+
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+                int localPort, HttpParams params) throws IOException {
+
+            final long start = SystemClock.uptimeMillis();
+            try {
+                return mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+            } finally {
+                mConnectTime.addAndGet(SystemClock.uptimeMillis() - start);
+                mConnectionCount.incrementAndGet();
+            }
+        }
+
+        public boolean isSecure(Socket sock) {
+            return mFactory.isSecure(sock);
+        }
+    }
+
+    private class TimedLayeredSocketFactory extends TimedSocketFactory
+            implements LayeredSocketFactory {
+        private final LayeredSocketFactory mLayeredFactory;
+
+        TimedLayeredSocketFactory(LayeredSocketFactory factory) {
+            super(factory);
+            mLayeredFactory = factory;
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+
+            // Layering TLS over a tunnel is part of setting up the connection, which
+            // was already counted when the tunnel was opened
+            final long start = SystemClock.uptimeMillis();
+            try {
+                return mLayeredFactory.createSocket(socket, host, port, autoClose);
+            } finally {
+                mConnectTime.addAndGet(SystemClock.uptimeMillis() - start);
+            }
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) mBytesReceived.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+            if (read > 0) mBytesReceived.addAndGet(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = super.skip(count);
+            if (skipped > 0) mBytesReceived.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
@@ -18,8 +18,15 @@ package com.google.android.photostream;
 
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpEntity;
@@ -30,24 +37,28 @@ import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.OutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.text.DateFormatSymbols;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
-import java.net.URL;
 
 import android.util.Xml;
 import android.view.InflateException;
@@ -136,13 +147,82 @@ class Flickr {
     private static final String DEFAULT_BUDDY_ICON_URL =
             "http://www.flickr.com/images/buddyicon.jpg";
 
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String ENCODING_GZIP = "gzip";
+
+    // Connections kept open to each host. The API host serves the concurrent feed
+    // checks, the photo hosts serve PhotoFetcher's download threads.
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int MAX_API_CONNECTIONS = 4;
+    private static final int MAX_TOTAL_CONNECTIONS = 16;
+    // Time, in milliseconds, during which an idle connection is kept alive when the
+    // server does not say otherwise
+    private static final long KEEP_ALIVE_DURATION = 30 * 1000;
+    private static final int CONNECTION_TIMEOUT = 20 * 1000;
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+
     private static final int IO_BUFFER_SIZE = 4 * 1024;
 
+    // Time, in milliseconds, during which the result of an API call is reused by
+    // identical calls, and the maximum number of results kept
+    private static final long API_RESULT_TTL = 30 * 1000;
+    private static final int MAX_API_RESULTS = 16;
+
     private static final boolean FLAG_DECODE_PHOTO_STREAM_WITH_SKIA = false;
 
     private static final Flickr sInstance = new Flickr();
 
+    private static final ThreadLocal<ParseContext> sParseContext = new ThreadLocal<ParseContext>() {
+        @Override
+        protected ParseContext initialValue() {
+            return new ParseContext();
+        }
+    };
+
     private HttpClient mClient;
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics();
+    private final RequestCoalescer mApiRequests =
+            new RequestCoalescer(API_RESULT_TTL, MAX_API_RESULTS);
+
+    private final ResponseParser<String[]> mUserParser = new ResponseParser<String[]>() {
+        public void parseResponse(XmlPullParser parser, String[] userId)
+                throws XmlPullParserException, IOException {
+            parseUser(parser, userId);
+        }
+    };
+
+    private final ResponseParser<UserInfo> mUserInfoParser = new ResponseParser<UserInfo>() {
+        public void parseResponse(XmlPullParser parser, UserInfo info)
+                throws XmlPullParserException, IOException {
+            parseUserInfo(parser, info);
+        }
+    };
+
+    private final ResponseParser<PhotoList> mPhotosParser = new ResponseParser<PhotoList>() {
+        public void parseResponse(XmlPullParser parser, PhotoList photos)
+                throws XmlPullParserException, IOException {
+            parsePhotos(parser, photos);
+        }
+    };
+
+    private final ResponseParser<Location> mLocationParser = new ResponseParser<Location>() {
+        public void parseResponse(XmlPullParser parser, Location location)
+                throws XmlPullParserException, IOException {
+            parsePhotoLocation(parser, location);
+        }
+    };
+
+    private final ResponseParser<FeedCheck> mFeedParser = new ResponseParser<FeedCheck>() {
+        public void parseResponse(XmlPullParser parser, FeedCheck check)
+                throws XmlPullParserException, IOException {
+            check.mUpdated = parseUpdated(parser, check.mReference);
+        }
+    };
 
     /**
      * Defines the size of the image to download from Flickr.
@@ -433,29 +513,30 @@ class Flickr {
          */
         Bitmap loadBuddyIcon() {
             Bitmap bitmap = null;
-            InputStream in = null;
-            OutputStream out = null;
-
-            try {
-                in = new BufferedInputStream(new URL(getBuddyIconUrl()).openStream(),
-                        IO_BUFFER_SIZE);
+            final HttpGet get = new HttpGet(getBuddyIconUrl());
 
-                if (FLAG_DECODE_PHOTO_STREAM_WITH_SKIA) {
+            if (FLAG_DECODE_PHOTO_STREAM_WITH_SKIA) {
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(sInstance.openStream(get), IO_BUFFER_SIZE);
                     bitmap = BitmapFactory.decodeStream(in);
-                } else {
-                    final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                    out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
-                    copy(in, out);
-                    out.flush();
-
-                    final byte[] data = dataStream.toByteArray();
-                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                } catch (IOException e) {
+                    get.abort();
+                    android.util.Log.e(Flickr.LOG_TAG, "Could not load buddy icon: " + this, e);
+                } finally {
+                    closeStream(in);
                 }
+                return bitmap;
+            }
+
+            final PhotoData data = PhotoData.obtain();
+            try {
+                sInstance.download(get, data);
+                bitmap = BitmapFactory.decodeByteArray(data.mBuffer, 0, data.mLength);
             } catch (IOException e) {
                 android.util.Log.e(Flickr.LOG_TAG, "Could not load buddy icon: " + this, e);
             } finally {
-                closeStream(in);
-                closeStream(out);
+                data.recycle();
             }
 
             return bitmap;
@@ -552,41 +633,206 @@ class Flickr {
         }
 
         /**
-         * Loads a Bitmap representing the photo for the specified size. The Bitmap is loaded
-         * from the URL returned by
-         * {@link #getUrl(com.google.android.photostream.Flickr.PhotoSize)}. 
+         * Loads a Bitmap representing the photo for the specified size, downsampled by
+         * a power of two when the photo is at least twice as large as needed to fit
+         * within the specified dimensions. The photo is loaded from the
+         * {@link com.google.android.photostream.ImageCache image cache} when available,
+         * or from the URL returned by
+         * {@link #getUrl(com.google.android.photostream.Flickr.PhotoSize)} otherwise.
+         * Photos downloaded from the network are added to the cache.
+         *
+         * The returned Bitmap might be shared with the cache and must not be recycled.
          *
          * @param size The size of the photo to load.
+         * @param width The width the photo will be scaled to fit in, or 0.
+         * @param height The height the photo will be scaled to fit in, or 0.
          *
-         * @return A Bitmap whose longest size is the same as the longest side of the
-         *         specified {@link com.google.android.photostream.Flickr.PhotoSize}, or null
-         *         if the photo could not be loaded.
+         * @return A Bitmap at least large enough to fit the specified dimensions without
+         *         upscaling, or null if the photo could not be loaded.
+         *
+         * @see #loadPhotoData(com.google.android.photostream.Flickr.PhotoSize)
+         * @see #decodePhotoBitmap(com.google.android.photostream.Flickr.PhotoSize,
+         *          com.google.android.photostream.Flickr.PhotoData, int, int)
          */
-        Bitmap loadPhotoBitmap(PhotoSize size) {
-            Bitmap bitmap = null;
-            InputStream in = null;
-            BufferedOutputStream out = null;
+        Bitmap loadPhotoBitmap(PhotoSize size, int width, int height) {
+            Bitmap bitmap = peekPhotoBitmap(size);
+            if (bitmap != null && fits(bitmap, width, height)) return bitmap;
+
+            if (FLAG_DECODE_PHOTO_STREAM_WITH_SKIA) {
+                final HttpGet get = new HttpGet(getUrl(size));
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(sInstance.openStream(get), IO_BUFFER_SIZE);
+                    bitmap = BitmapFactory.decodeStream(in);
 
+                    final ImageCache cache = ImageCache.get();
+                    if (bitmap != null && cache != null) {
+                        cache.putBitmap(ImageCache.createKey(mId, size), bitmap);
+                    }
+                } catch (IOException e) {
+                    get.abort();
+                    android.util.Log.e(Flickr.LOG_TAG, "Could not load photo: " + this, e);
+                } finally {
+                    closeStream(in);
+                }
+                return bitmap;
+            }
+
+            final PhotoData data = loadPhotoData(size);
             try {
-                in = new BufferedInputStream(new URL(getUrl(size)).openStream(),
-                        IO_BUFFER_SIZE);
+                return decodePhotoBitmap(size, data, width, height);
+            } finally {
+                if (data != null) data.recycle();
+            }
+        }
 
-                if (FLAG_DECODE_PHOTO_STREAM_WITH_SKIA) {
-                    bitmap = BitmapFactory.decodeStream(in);
-                } else {
-                    final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                    out = new BufferedOutputStream(dataStream, IO_BUFFER_SIZE);
-                    copy(in, out);
-                    out.flush();
-
-                    final byte[] data = dataStream.toByteArray();
-                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        /**
+         * Returns the decoded Bitmap of the photo for the specified size if it is
+         * present in the memory cache. This method never accesses the disk or the network.
+         *
+         * @param size The size of the photo.
+         *
+         * @return A shared Bitmap that must not be recycled, or null.
+         */
+        Bitmap peekPhotoBitmap(PhotoSize size) {
+            final ImageCache cache = ImageCache.get();
+            return cache != null ? cache.getBitmap(ImageCache.createKey(mId, size)) : null;
+        }
+
+        /**
+         * Returns the decoded Bitmap of the photo for the specified size if it is
+         * present in the memory cache or in the disk cache. This method never accesses
+         * the network.
+         *
+         * @param size The size of the photo.
+         *
+         * @return A shared Bitmap that must not be recycled, or null.
+         */
+        Bitmap loadCachedPhotoBitmap(PhotoSize size) {
+            final Bitmap bitmap = peekPhotoBitmap(size);
+            if (bitmap != null) return bitmap;
+
+            final ImageCache cache = ImageCache.get();
+            if (cache == null) return null;
+
+            final PhotoData data = PhotoData.obtain();
+            try {
+                if (!cache.getData(ImageCache.createKey(mId, size), data)) return null;
+                return decodePhotoBitmap(size, data, 0, 0);
+            } finally {
+                data.recycle();
+            }
+        }
+
+        /**
+         * Loads the encoded image of the photo for the specified size, either from the
+         * disk cache or from the network. Images downloaded from the network are added to
+         * the disk cache. The download stops with an error if the calling thread is
+         * interrupted.
+         *
+         * @param size The size of the photo to load.
+         *
+         * @return The encoded image, or null if the photo could not be loaded. The caller
+         *         must {@link com.google.android.photostream.Flickr.PhotoData#recycle()
+         *         recycle} the returned data once it is done with it.
+         */
+        PhotoData loadPhotoData(PhotoSize size) {
+            return loadPhotoData(size, true);
+        }
+
+        /**
+         * Loads the encoded image of the photo for the specified size, either from the
+         * disk cache or from the network. Images downloaded for a one-off use, such as
+         * a large photo cropped into a wallpaper, should not be added to the disk cache
+         * where they would evict many thumbnails.
+         *
+         * @param size The size of the photo to load.
+         * @param addToCache True if an image downloaded from the network must be added
+         *        to the disk cache.
+         *
+         * @return The encoded image, or null if the photo could not be loaded. The caller
+         *         must {@link com.google.android.photostream.Flickr.PhotoData#recycle()
+         *         recycle} the returned data once it is done with it.
+         *
+         * @see #loadPhotoData(com.google.android.photostream.Flickr.PhotoSize)
+         */
+        PhotoData loadPhotoData(PhotoSize size, boolean addToCache) {
+            return loadPhotoData(size, new HttpGet(getUrl(size)), addToCache);
+        }
+
+        /**
+         * Loads the encoded image of the photo for the specified size, either from the
+         * disk cache or by executing the specified request. Aborting the request from
+         * another thread stops the download right away, even while the calling thread
+         * is blocked on the network.
+         *
+         * @param size The size of the photo to load.
+         * @param get The request for the URL returned by
+         *        {@link #getUrl(com.google.android.photostream.Flickr.PhotoSize)}, only
+         *        executed when the photo is not in the disk cache.
+         * @param addToCache True if an image downloaded from the network must be added
+         *        to the disk cache.
+         *
+         * @return The encoded image, or null if the photo could not be loaded. The caller
+         *         must {@link com.google.android.photostream.Flickr.PhotoData#recycle()
+         *         recycle} the returned data once it is done with it.
+         */
+        PhotoData loadPhotoData(PhotoSize size, HttpGet get, boolean addToCache) {
+            final ImageCache cache = ImageCache.get();
+            final String key = ImageCache.createKey(mId, size);
+            final PhotoData data = PhotoData.obtain();
+
+            if (cache != null && cache.getData(key, data)) {
+                return data;
+            }
+
+            try {
+                sInstance.download(get, data);
+
+                if (cache != null && addToCache) {
+                    cache.putData(key, data.mBuffer, data.mLength);
                 }
+                return data;
             } catch (IOException e) {
                 android.util.Log.e(Flickr.LOG_TAG, "Could not load photo: " + this, e);
-            } finally {
-                closeStream(in);
-                closeStream(out);
+            }
+
+            data.recycle();
+            return null;
+        }
+
+        /**
+         * Decodes the specified encoded image of this photo and stores the resulting
+         * Bitmap in the memory cache. The bounds of the image are read first to pick
+         * the largest power of two sample size that still lets the photo fit the
+         * specified dimensions without upscaling.
+         *
+         * @param size The size of the photo the data was loaded for.
+         * @param data The encoded image, as returned by
+         *        {@link #loadPhotoData(com.google.android.photostream.Flickr.PhotoSize)}.
+         * @param width The width the photo will be scaled to fit in, or 0.
+         * @param height The height the photo will be scaled to fit in, or 0.
+         *
+         * @return A shared Bitmap that must not be recycled, or null if data is null or
+         *         cannot be decoded.
+         */
+        Bitmap decodePhotoBitmap(PhotoSize size, PhotoData data, int width, int height) {
+            if (data == null) return null;
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            if (width > 0 && height > 0) {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data.mBuffer, 0, data.mLength, options);
+                options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                        width, height);
+                options.inJustDecodeBounds = false;
+            }
+
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(data.mBuffer, 0, data.mLength,
+                    options);
+            final ImageCache cache = ImageCache.get();
+            if (bitmap != null && cache != null) {
+                cache.putBitmap(ImageCache.createKey(mId, size), bitmap);
             }
 
             return bitmap;
@@ -610,6 +856,26 @@ class Flickr {
             dest.writeString(mDate);
         }
 
+        private void writeTo(DataOutputStream out) throws IOException {
+            writeString(out, mId);
+            writeString(out, mSecret);
+            writeString(out, mServer);
+            writeString(out, mFarm);
+            writeString(out, mTitle);
+            writeString(out, mDate);
+        }
+
+        private static Photo readFrom(DataInputStream in) throws IOException {
+            final Photo photo = new Photo();
+            photo.mId = readString(in);
+            photo.mSecret = readString(in);
+            photo.mServer = readString(in);
+            photo.mFarm = readString(in);
+            photo.mTitle = readString(in);
+            photo.mDate = readString(in);
+            return photo;
+        }
+
         public static final Parcelable.Creator<Photo> CREATOR = new Parcelable.Creator<Photo>() {
             public Photo createFromParcel(Parcel in) {
                 return new Photo(in);
@@ -652,10 +918,11 @@ class Flickr {
         /**
          * Returns the number of photos in the list.
          *
-         * @return A positive integer, or 0 if the list is empty.
+         * @return A positive integer, or 0 if the list is empty or could not be loaded.
          */
         public int getCount() {
-            return mPhotos.size();
+            // The list of a failed request is never filled in by the parser
+            return mPhotos != null ? mPhotos.size() : 0;
         }
 
         /**
@@ -675,6 +942,252 @@ class Flickr {
         public int getPageCount() {
             return mPageCount;
         }
+
+        /**
+         * Indicates whether the specified list contains the same photos, in the same
+         * order, and has the same page count as this list.
+         *
+         * @param other The list to compare to this list.
+         *
+         * @return True if both lists would be displayed identically.
+         */
+        boolean hasSamePhotos(PhotoList other) {
+            if (mPageCount != other.mPageCount || getCount() != other.getCount()) return false;
+
+            final int count = getCount();
+            for (int i = 0; i < count; i++) {
+                final Photo photo = mPhotos.get(i);
+                final Photo otherPhoto = other.mPhotos.get(i);
+                if (!photo.mId.equals(otherPhoto.mId) ||
+                        !equals(photo.mTitle, otherPhoto.mTitle)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Writes this list in a compact binary form that can be read back with
+         * {@link #readFrom(java.io.DataInputStream)}.
+         *
+         * @param out The stream to write the list to.
+         *
+         * @throws IOException If the list cannot be written.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(mPage);
+            out.writeInt(mPageCount);
+
+            final int count = getCount();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                mPhotos.get(i).writeTo(out);
+            }
+        }
+
+        /**
+         * Reads a list previously written with
+         * {@link #writeTo(java.io.DataOutputStream)}.
+         *
+         * @param in The stream to read the list from.
+         *
+         * @return A new PhotoList.
+         *
+         * @throws IOException If the list cannot be read.
+         */
+        static PhotoList readFrom(DataInputStream in) throws IOException {
+            final PhotoList photos = new PhotoList();
+            photos.mPage = in.readInt();
+            photos.mPageCount = in.readInt();
+
+            final int count = in.readInt();
+            photos.mPhotos = new ArrayList<Photo>(count);
+            for (int i = 0; i < count; i++) {
+                photos.add(Photo.readFrom(in));
+            }
+
+            return photos;
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    /**
+     * The state of a check for updates on a user's feed. A check carries the HTTP
+     * validators (ETag and Last-Modified) returned by the previous check of the same
+     * feed, if any, so that the feed can be requested conditionally.
+     *
+     * A check is run on a worker thread and read from another one, possibly while
+     * a cancelled worker is still running, so its result fields are volatile and
+     * the completion flag is always written last.
+     *
+     * @see Flickr#checkForUpdates(com.google.android.photostream.Flickr.FeedCheck)
+     */
+    static class FeedCheck {
+        private final User mUser;
+        private final Calendar mReference;
+        private volatile String mETag;
+        private volatile String mLastModified;
+        private volatile boolean mUpdated;
+        private volatile boolean mNotModified;
+        private volatile boolean mCompleted;
+
+        /**
+         * Creates a new check for the specified user.
+         *
+         * @param user The user whose feed must be checked.
+         * @param reference The date after which to check for updates.
+         */
+        FeedCheck(User user, Calendar reference) {
+            mUser = user;
+            mReference = reference;
+        }
+
+        /**
+         * Sets the validators returned by the previous check of this feed.
+         *
+         * @param eTag The previous ETag, or null.
+         * @param lastModified The previous Last-Modified date, or null.
+         */
+        void setValidators(String eTag, String lastModified) {
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        User getUser() {
+            return mUser;
+        }
+
+        String getETag() {
+            return mETag;
+        }
+
+        String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * Indicates whether the feed was updated after the reference date.
+         *
+         * @return True if the feed has updates, false otherwise.
+         */
+        boolean hasUpdates() {
+            return mUpdated;
+        }
+
+        /**
+         * Indicates whether the server reported the feed as unchanged since the
+         * previous check.
+         *
+         * @return True if the server answered with 304 Not Modified.
+         */
+        boolean isNotModified() {
+            return mNotModified;
+        }
+
+        /**
+         * Indicates whether the feed could be checked. A check that failed, for
+         * instance because of a network error, says nothing about the feed.
+         *
+         * @return True if the server answered and the answer was understood.
+         */
+        boolean isCompleted() {
+            return mCompleted;
+        }
+    }
+
+    /**
+     * Holds the encoded image of a photo in a growable buffer. Instances are pooled to
+     * avoid allocating, and copying, a new buffer for every photo: use {@link #obtain()}
+     * to get an instance and {@link #recycle()} to give it back once the image has been
+     * decoded.
+     */
+    static final class PhotoData {
+        private static final int INITIAL_CAPACITY = 16 * 1024;
+        // Buffers grown past this capacity are not kept in the pool
+        private static final int MAX_POOLED_CAPACITY = 256 * 1024;
+        private static final int MAX_POOL_SIZE = 8;
+
+        private static final ArrayList<PhotoData> sPool =
+                new ArrayList<PhotoData>(MAX_POOL_SIZE);
+
+        byte[] mBuffer;
+        int mLength;
+
+        private PhotoData() {
+            mBuffer = new byte[INITIAL_CAPACITY];
+        }
+
+        /**
+         * Returns an empty instance from the pool, or a new instance if the pool is empty.
+         *
+         * @return An empty PhotoData.
+         */
+        static PhotoData obtain() {
+            synchronized (sPool) {
+                final int count = sPool.size();
+                if (count > 0) return sPool.remove(count - 1);
+            }
+            return new PhotoData();
+        }
+
+        /**
+         * Gives this instance back to the pool. The instance must not be used after
+         * this method is invoked.
+         */
+        void recycle() {
+            mLength = 0;
+            if (mBuffer.length > MAX_POOLED_CAPACITY) return;
+            synchronized (sPool) {
+                if (sPool.size() < MAX_POOL_SIZE) sPool.add(this);
+            }
+        }
+
+        /**
+         * Empties the buffer and makes sure it can hold the specified number of bytes.
+         *
+         * @param expectedLength The expected length of the image, or -1 if unknown.
+         */
+        void reset(int expectedLength) {
+            mLength = 0;
+            if (expectedLength > mBuffer.length) {
+                mBuffer = new byte[expectedLength];
+            }
+        }
+
+        /**
+         * Appends the content of the specified stream to the buffer, growing it as
+         * needed. The read is aborted if the current thread is interrupted.
+         *
+         * @param in The stream to read until its end.
+         *
+         * @throws IOException If an error occurs while reading or the thread is interrupted.
+         */
+        void readFrom(InputStream in) throws IOException {
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Read interrupted");
+                }
+
+                if (mLength == mBuffer.length) {
+                    // Don't grow the buffer if the stream was exactly as long as expected
+                    final int b = in.read();
+                    if (b == -1) break;
+
+                    final byte[] buffer = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                    mBuffer = buffer;
+                    mBuffer[mLength++] = (byte) b;
+                }
+
+                final int read = in.read(mBuffer, mLength, mBuffer.length - mLength);
+                if (read == -1) break;
+                mLength += read;
+            }
+        }
     }
 
     /**
@@ -690,14 +1203,59 @@ class Flickr {
         final HttpParams params = new BasicHttpParams();
         HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
         HttpProtocolParams.setContentCharset(params, "UTF-8");
+        HttpProtocolParams.setUseExpectContinue(params, false);
+
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+
+        final ConnPerRouteBean connectionsPerRoute = new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST);
+        connectionsPerRoute.setMaxForRoute(new HttpRoute(new HttpHost(API_REST_HOST, 80, "http")),
+                MAX_API_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, connectionsPerRoute);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
 
         final SchemeRegistry registry = new SchemeRegistry();
-        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("http",
+                mMetrics.wrap(PlainSocketFactory.getSocketFactory()), 80));
+        registry.register(new Scheme("https",
+                mMetrics.wrap(SSLSocketFactory.getSocketFactory()), 443));
 
         final ThreadSafeClientConnManager manager =
                 new ThreadSafeClientConnManager(params, registry);
 
-        mClient = new DefaultHttpClient(manager, params);
+        final DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy mServerStrategy =
+                    new DefaultConnectionKeepAliveStrategy();
+
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                final long duration = mServerStrategy.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, KEEP_ALIVE_DURATION) :
+                        KEEP_ALIVE_DURATION;
+            }
+        });
+
+        mClient = client;
+    }
+
+    /**
+     * Returns the counters describing the HTTP connections used by this class.
+     *
+     * @return The connection metrics of the shared HTTP client.
+     */
+    ConnectionMetrics getConnectionMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the counters describing the API calls shared between identical requests.
+     *
+     * @return The coalescer of the API calls.
+     */
+    RequestCoalescer getApiRequests() {
+        return mApiRequests;
     }
 
     /**
@@ -721,20 +1279,8 @@ class Flickr {
         final Uri.Builder uri = buildGetMethod(API_PEOPLE_FIND_BY_USERNAME);
         uri.appendQueryParameter(PARAM_USERNAME, userName);
 
-        final HttpGet get = new HttpGet(uri.build().toString());
-        final String[] userId = new String[1];
-
         try {
-            executeRequest(get, new ResponseHandler() {
-                public void handleResponse(InputStream in) throws IOException {
-                    parseResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            parseUser(parser, userId);
-                        }
-                    });
-                }
-            });
+            final String[] userId = executeSharedRequest(uri, mUserParser, new String[1]);
 
             if (userId[0] != null) {
                 return new User(userId[0]);
@@ -765,23 +1311,8 @@ class Flickr {
         final Uri.Builder uri = buildGetMethod(API_PEOPLE_GET_INFO);
         uri.appendQueryParameter(PARAM_USERID, nsid);
 
-        final HttpGet get = new HttpGet(uri.build().toString());
-
         try {
-            final UserInfo info = new UserInfo(nsid);
-
-            executeRequest(get, new ResponseHandler() {
-                public void handleResponse(InputStream in) throws IOException {
-                    parseResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            parseUserInfo(parser, info);
-                        }
-                    });
-                }
-            });
-
-            return info;
+            return executeSharedRequest(uri, mUserInfoParser, new UserInfo(nsid));
         } catch (IOException e) {
             android.util.Log.e(LOG_TAG, "Could not find the user with id: " + nsid);
         }
@@ -806,8 +1337,6 @@ class Flickr {
      *
      * @see com.google.android.photostream.Flickr.Photo
      * @see com.google.android.photostream.Flickr.PhotoList
-     * @see #downloadPhoto(com.google.android.photostream.Flickr.Photo,
-     *          com.google.android.photostream.Flickr.PhotoSize, java.io.OutputStream) 
      */
     PhotoList getPublicPhotos(User user, int perPage, int page) {
         final Uri.Builder uri = buildGetMethod(API_PEOPLE_GET_PUBLIC_PHOTOS);
@@ -816,25 +1345,13 @@ class Flickr {
         uri.appendQueryParameter(PARAM_PAGE, String.valueOf(page));
         uri.appendQueryParameter(PARAM_EXTRAS, VALUE_DEFAULT_EXTRAS);
 
-        final HttpGet get = new HttpGet(uri.build().toString());
-        final PhotoList photos = new PhotoList();
-
         try {
-            executeRequest(get, new ResponseHandler() {
-                public void handleResponse(InputStream in) throws IOException {
-                    parseResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            parsePhotos(parser, photos);
-                        }
-                    });
-                }
-            });
+            return executeSharedRequest(uri, mPhotosParser, new PhotoList());
         } catch (IOException e) {
             android.util.Log.e(LOG_TAG, "Could not find photos for user: " + user);
         }
 
-        return photos;
+        return new PhotoList();
     }
 
     /**
@@ -852,21 +1369,8 @@ class Flickr {
         final Uri.Builder uri = buildGetMethod(API_PEOPLE_GET_LOCATION);
         uri.appendQueryParameter(PARAM_PHOTO_ID, photo.mId);
 
-        final HttpGet get = new HttpGet(uri.build().toString());
-        final Location location = new Location(0.0f, 0.0f);
-
         try {
-            executeRequest(get, new ResponseHandler() {
-                public void handleResponse(InputStream in) throws IOException {
-                    parseResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            parsePhotoLocation(parser, location);
-                        }
-                    });
-                }
-            });
-            return location;
+            return executeSharedRequest(uri, mLocationParser, new Location(0.0f, 0.0f));
         } catch (IOException e) {
             android.util.Log.e(LOG_TAG, "Could not find location for photo: " + photo);
         }
@@ -875,66 +1379,57 @@ class Flickr {
     }
 
     /**
-     * Checks the specified user's feed to see if any updated occured after the
-     * specified date.
+     * Checks a user's feed to see if any updated occured after the reference date of
+     * the specified check. When the check carries the validators returned by a previous
+     * check, the feed is requested conditionally and is not downloaded again if it has
+     * not changed. Only the beginning of the feed is read, up to the first update
+     * timestamp.
      *
-     * @param user The user whose feed must be checked.
-     * @param reference The date after which to check for updates.
+     * @param check The feed to check. The check is updated with the result and with
+     *        the validators returned by the server.
      *
-     * @return True if any update occured after the reference date, false otherwise.
+     * @see com.google.android.photostream.Flickr.FeedCheck
      */
-    boolean hasUpdates(User user, final Calendar reference) {
+    void checkForUpdates(FeedCheck check) {
         final Uri.Builder uri = new Uri.Builder();
         uri.path(API_FEED_URL);
-        uri.appendQueryParameter(PARAM_FEED_ID, user.getId());
+        uri.appendQueryParameter(PARAM_FEED_ID, check.mUser.getId());
         uri.appendQueryParameter(PARAM_FEED_FORMAT, VALUE_DEFAULT_FORMAT);
 
         final HttpGet get = new HttpGet(uri.build().toString());
-        final boolean[] updated = new boolean[1];
-
-        try {
-            executeRequest(get, new ResponseHandler() {
-                public void handleResponse(InputStream in) throws IOException {
-                    parseFeedResponse(in, new ResponseParser() {
-                        public void parseResponse(XmlPullParser parser)
-                                throws XmlPullParserException, IOException {
-                            updated[0] = parseUpdated(parser, reference);
-                        }
-                    });
-                }
-            });
-        } catch (IOException e) {
-            android.util.Log.e(LOG_TAG, "Could not find feed for user: " + user);
+        if (check.mETag != null) {
+            get.addHeader(HEADER_IF_NONE_MATCH, check.mETag);
         }
+        if (check.mLastModified != null) {
+            get.addHeader(HEADER_IF_MODIFIED_SINCE, check.mLastModified);
+        }
+        get.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
 
-        return updated[0];
-    }
-
-    /**
-     * Downloads the specified photo at the specified size in the specified destination.
-     *
-     * @param photo The photo to download.
-     * @param size The size of the photo to download.
-     * @param destination The output stream in which to write the downloaded photo.
-     *
-     * @throws IOException If any network exception occurs during the download.
-     */
-    void downloadPhoto(Photo photo, PhotoSize size, OutputStream destination) throws IOException {
-        final BufferedOutputStream out = new BufferedOutputStream(destination, IO_BUFFER_SIZE);
-        final String url = photo.getUrl(size);
-        final HttpGet get = new HttpGet(url);
-
-        HttpEntity entity = null;
+        final HttpHost host = new HttpHost(API_REST_HOST, 80, "http");
+        boolean notModified = false;
         try {
-            final HttpResponse response = mClient.execute(get);
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                entity = response.getEntity();
-                entity.writeTo(out);
-                out.flush();
+            final HttpResponse response = execute(host, get);
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                notModified = true;
+                check.mNotModified = true;
+                check.mCompleted = true;
+            } else if (status == HttpStatus.SC_OK) {
+                parseFeedResponse(getContent(response.getEntity()), mFeedParser, check);
+
+                // Only remember the validators of feeds that were successfully parsed
+                check.mETag = getHeaderValue(response, HEADER_ETAG);
+                check.mLastModified = getHeaderValue(response, HEADER_LAST_MODIFIED);
+                check.mCompleted = true;
             }
+        } catch (IOException e) {
+            android.util.Log.e(LOG_TAG, "Could not find feed for user: " + check.mUser);
         } finally {
-            if (entity != null) {
-                entity.consumeContent();
+            // A 304 has no body. Otherwise abort the request instead of downloading
+            // the rest of the feed, or the body of an error, only to discard it; this
+            // also releases the connection when the request failed
+            if (!notModified) {
+                get.abort();
             }
         }
     }
@@ -954,18 +1449,20 @@ class Flickr {
 
             name = parser.getName();
             if (RESPONSE_TAG_UPDATED.equals(name)) {
+                // The first <updated> element is the feed's; stop there
                 if (parser.next() == XmlPullParser.TEXT) {
-                    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                    final ParseContext context = sParseContext.get();
                     try {
                         final String text = parser.getText().replace('T', ' ').replace('Z', ' ');
-                        final Calendar calendar = new GregorianCalendar();
-                        calendar.setTimeInMillis(format.parse(text).getTime());
+                        final Calendar calendar = context.mCalendar;
+                        calendar.setTimeInMillis(context.mFeedDateFormat.parse(text).getTime());
 
                         return calendar.after(reference);
                     } catch (ParseException e) {
                         // Ignore
                     }
                 }
+                break;
             }
         }
 
@@ -976,9 +1473,7 @@ class Flickr {
             throws XmlPullParserException, IOException {
         int type;
         String name;
-        SimpleDateFormat parseFormat = null;
-        SimpleDateFormat outputFormat = null;
-
+        final ParseContext context = sParseContext.get();
         final int depth = parser.getDepth();
 
         while (((type = parser.next()) != XmlPullParser.END_TAG ||
@@ -1000,18 +1495,8 @@ class Flickr {
                 photo.mServer = parser.getAttributeValue(null, RESPONSE_ATTR_SERVER);
                 photo.mFarm = parser.getAttributeValue(null, RESPONSE_ATTR_FARM);
                 photo.mTitle = parser.getAttributeValue(null, RESPONSE_ATTR_TITLE);
-                photo.mDate = parser.getAttributeValue(null, RESPONSE_ATTR_DATE_TAKEN);
-
-                if (parseFormat == null) {
-                    parseFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                    outputFormat = new SimpleDateFormat("MMMM d, yyyy");
-                }
-
-                try {
-                    photo.mDate = outputFormat.format(parseFormat.parse(photo.mDate));
-                } catch (ParseException e) {
-                    android.util.Log.w(LOG_TAG, "Could not parse photo date", e);
-                }
+                photo.mDate = context.formatPhotoDate(
+                        parser.getAttributeValue(null, RESPONSE_ATTR_DATE_TAKEN));
 
                 photos.add(photo);
             }
@@ -1111,14 +1596,17 @@ class Flickr {
     /**
      * Parses a valid Flickr XML response from the specified input stream. When the Flickr
      * response contains the OK tag, the response is sent to the specified response parser.
+     * The XML parser is reused across responses parsed on the same thread.
      *
      * @param in The input stream containing the response sent by Flickr.
      * @param responseParser The parser to use when the response is valid.
+     * @param target The object the parser stores the response into.
      * 
      * @throws IOException
      */
-    private void parseResponse(InputStream in, ResponseParser responseParser) throws IOException {
-        final XmlPullParser parser = Xml.newPullParser();
+    private <T> void parseResponse(InputStream in, ResponseParser<T> responseParser, T target)
+            throws IOException {
+        final XmlPullParser parser = sParseContext.get().mParser;
         try {
             parser.setInput(new InputStreamReader(in));
 
@@ -1141,7 +1629,7 @@ class Flickr {
                 }
             }
 
-            responseParser.parseResponse(parser);
+            responseParser.parseResponse(parser, target);
 
         } catch (XmlPullParserException e) {
             final IOException ioe = new IOException("Could not parser the response");
@@ -1152,16 +1640,18 @@ class Flickr {
 
     /**
      * Parses a valid Flickr Atom feed response from the specified input stream.
+     * The XML parser is reused across responses parsed on the same thread.
      *
      * @param in The input stream containing the response sent by Flickr.
      * @param responseParser The parser to use when the response is valid.
+     * @param target The object the parser stores the response into.
      *
      * @throws IOException
      */
-    private void parseFeedResponse(InputStream in, ResponseParser responseParser)
-            throws IOException {
+    private <T> void parseFeedResponse(InputStream in, ResponseParser<T> responseParser,
+            T target) throws IOException {
 
-        final XmlPullParser parser = Xml.newPullParser();
+        final XmlPullParser parser = sParseContext.get().mParser;
         try {
             parser.setInput(new InputStreamReader(in));
 
@@ -1178,7 +1668,7 @@ class Flickr {
 
             String name = parser.getName();
             if (RESPONSE_TAG_FEED.equals(name)) {
-                responseParser.parseResponse(parser);
+                responseParser.parseResponse(parser, target);
             } else {
                 throw new IOException("Wrong start tag: " + name);                
             }
@@ -1190,25 +1680,60 @@ class Flickr {
         }
     }
 
+    /**
+     * Executes an API call on Flickr's web service, sharing the call with identical
+     * calls in flight and reusing the result of an identical call made recently. The
+     * call is identified by its URI, which contains the method and all its parameters.
+     *
+     * The returned object is shared between callers and must not be modified.
+     *
+     * @param uri The URI of the API call.
+     * @param responseParser The parser to use when the response is valid.
+     * @param target The object the parser stores the response into if this call
+     *        is executed.
+     *
+     * @return The parsed response, which is either the target or the target of an
+     *         identical call.
+     *
+     * @throws IOException If the call, or the identical call it was waiting for, failed.
+     */
+    private <T> T executeSharedRequest(Uri.Builder uri, final ResponseParser<T> responseParser,
+            final T target) throws IOException {
+
+        final String url = uri.build().toString();
+        return mApiRequests.execute(url, new RequestCoalescer.Request<T>() {
+            public T execute() throws IOException {
+                executeRequest(new HttpGet(url), responseParser, target);
+                return target;
+            }
+        });
+    }
+
     /**
      * Executes an HTTP request on Flickr's web service. If the response is ok, the content
-     * is sent to the specified response handler.
+     * is parsed by the specified response parser.
      *
      * @param get The GET request to executed.
-     * @param handler The handler which will parse the response.
+     * @param responseParser The parser to use when the response is valid.
+     * @param target The object the parser stores the response into.
      * 
-     * @throws IOException
+     * @throws IOException If the request fails or the response is not a 200.
      */
-    private void executeRequest(HttpGet get, ResponseHandler handler) throws IOException {
+    private <T> void executeRequest(HttpGet get, ResponseParser<T> responseParser, T target)
+            throws IOException {
         HttpEntity entity = null;
         HttpHost host = new HttpHost(API_REST_HOST, 80, "http");
+        get.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
         try {
-            final HttpResponse response = mClient.execute(host, get);
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                entity = response.getEntity();
-                final InputStream in = entity.getContent();
-                handler.handleResponse(in);
+            final HttpResponse response = execute(host, get);
+            entity = response.getEntity();
+
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Unexpected response " + status + " for " + get.getURI());
             }
+
+            parseResponse(getContent(entity), responseParser, target);
         } finally {
             if (entity != null) {
                 entity.consumeContent();
@@ -1216,6 +1741,106 @@ class Flickr {
         }
     }
 
+    /**
+     * Executes the specified request with the shared, pooled, HTTP client.
+     *
+     * @param host The host to send the request to, or null if the request's URI
+     *        is absolute.
+     * @param get The request to execute.
+     *
+     * @return The response to the request.
+     *
+     * @throws IOException If the request could not be executed.
+     */
+    private HttpResponse execute(HttpHost host, HttpGet get) throws IOException {
+        mMetrics.onRequest();
+        return host != null ? mClient.execute(host, get) : mClient.execute(get);
+    }
+
+    /**
+     * Executes the specified request and returns a stream on the body of the response.
+     * The connection goes back to the pool once the stream is read to the end or closed.
+     * If the stream is abandoned before that, the caller must abort the request.
+     *
+     * @param get The request to execute.
+     *
+     * @return A stream on the body of the response.
+     *
+     * @throws IOException If the request fails or the response is not a 200.
+     */
+    private InputStream openStream(HttpGet get) throws IOException {
+        final HttpResponse response = execute(null, get);
+        final HttpEntity entity = response.getEntity();
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+            get.abort();
+            throw new IOException("Unexpected response " + response.getStatusLine() +
+                    " for " + get.getURI());
+        }
+        return mMetrics.wrap(entity.getContent());
+    }
+
+    /**
+     * Downloads the body of the response to the specified request into the specified
+     * buffer. The request is aborted, and its connection closed, if the download fails
+     * or if the calling thread is interrupted. Otherwise the connection goes back to
+     * the pool.
+     *
+     * @param get The request to execute.
+     * @param data The buffer to download the response into.
+     *
+     * @throws IOException If the download fails or the response is not a 200.
+     */
+    private void download(HttpGet get, PhotoData data) throws IOException {
+        boolean success = false;
+        try {
+            final HttpResponse response = execute(null, get);
+            final HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                throw new IOException("Unexpected response " + response.getStatusLine() +
+                        " for " + get.getURI());
+            }
+
+            data.reset((int) entity.getContentLength());
+            data.readFrom(mMetrics.wrap(entity.getContent()));
+            entity.consumeContent();
+            success = true;
+        } finally {
+            if (!success) get.abort();
+        }
+    }
+
+    /**
+     * Returns a stream on the body of the specified response entity, decompressed
+     * if the server honored the request for a gzip-encoded response.
+     *
+     * @param entity The entity of the response.
+     *
+     * @return A stream on the uncompressed body of the response.
+     *
+     * @throws IOException If the content cannot be read.
+     */
+    private InputStream getContent(HttpEntity entity) throws IOException {
+        final InputStream in = mMetrics.wrap(entity.getContent());
+        final Header encoding = entity.getContentEncoding();
+        if (encoding != null && ENCODING_GZIP.equalsIgnoreCase(encoding.getValue())) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Returns the value of the first header of the specified name in the response.
+     *
+     * @param response The HTTP response.
+     * @param name The name of the header.
+     *
+     * @return The value of the header, or null if the response has no such header.
+     */
+    private static String getHeaderValue(HttpResponse response, String name) {
+        final Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
     /**
      * Builds an HTTP GET request for the specified Flickr API method. The returned request
      * contains the web service path, the query parameter for the API KEY and the query
@@ -1233,21 +1858,48 @@ class Flickr {
         return builder;
     }
 
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     /**
-     * Copy the content of the input stream into the output stream, using a temporary
-     * byte array buffer whose size is defined by {@link #IO_BUFFER_SIZE}.
+     * Computes the largest power of two sample size that can be used to decode an image
+     * of the specified dimensions while still fitting the target dimensions without
+     * upscaling.
      *
-     * @param in The input stream to copy from.
-     * @param out The output stream to copy to.
+     * @param width The width of the encoded image.
+     * @param height The height of the encoded image.
+     * @param targetWidth The width the image will be scaled to fit in.
+     * @param targetHeight The height the image will be scaled to fit in.
      *
-     * @throws IOException If any error occurs during the copy.
+     * @return A power of two, 1 if the image should not be downsampled.
      */
-    private static void copy(InputStream in, OutputStream out) throws IOException {
-        byte[] b = new byte[IO_BUFFER_SIZE];
-        int read;
-        while ((read = in.read(b)) != -1) {
-            out.write(b, 0, read);
+    static int computeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0 || targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
         }
+
+        while (width / (sampleSize * 2) >= targetWidth ||
+                height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Indicates whether the specified Bitmap is large enough to be scaled to fit the
+     * specified dimensions without upscaling.
+     */
+    private static boolean fits(Bitmap bitmap, int width, int height) {
+        return width <= 0 || height <= 0 ||
+                bitmap.getWidth() >= width || bitmap.getHeight() >= height;
     }
 
     /**
@@ -1266,37 +1918,83 @@ class Flickr {
     }
 
     /**
-     * Response handler used with
-     * {@link Flickr#executeRequest(org.apache.http.client.methods.HttpGet,
-     * com.google.android.photostream.Flickr.ResponseHandler)}. The handler is invoked when
-     * a response is sent by the server. The response is made available as an input stream. 
+     * Response parser used with {@link Flickr#parseResponse(java.io.InputStream,
+     * com.google.android.photostream.Flickr.ResponseParser, Object)}. When Flickr returns
+     * a valid response, this parser is invoked to process the XML response. Parsers hold
+     * no state and are shared by all the requests of the same kind.
      */
-    private static interface ResponseHandler {
+    private static interface ResponseParser<T> {
         /**
-         * Processes the responses sent by the HTTP server following a GET request.
+         * Processes the XML response sent by the Flickr web service after a successful
+         * request.
          *
-         * @param in The stream containing the server's response.
+         * @param parser The parser containing the XML responses.
+         * @param target The object to store the response into.
          *
+         * @throws XmlPullParserException
          * @throws IOException
          */
-        public void handleResponse(InputStream in) throws IOException;
+        public void parseResponse(XmlPullParser parser, T target)
+                throws XmlPullParserException, IOException;
     }
 
     /**
-     * Response parser used with {@link Flickr#parseResponse(java.io.InputStream,
-     * com.google.android.photostream.Flickr.ResponseParser)}. When Flickr returns a valid
-     * response, this parser is invoked to process the XML response.
+     * State reused by all the responses parsed on a given thread: the XML pull parser
+     * and the objects used to parse and format dates.
      */
-    private static interface ResponseParser {
+    private static final class ParseContext {
+        final XmlPullParser mParser = Xml.newPullParser();
+        final SimpleDateFormat mFeedDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        final Calendar mCalendar = new GregorianCalendar();
+        final StringBuilder mDateBuilder = new StringBuilder(24);
+
+        private Locale mLocale;
+        private String[] mMonths;
+
         /**
-         * Processes the XML response sent by the Flickr web service after a successful
-         * request.
+         * Formats a date taken, as sent by Flickr with the pattern yyyy-MM-dd HH:mm:ss,
+         * with the pattern MMMM d, yyyy in the current locale. The fixed layout of the
+         * input is parsed by hand to avoid going through SimpleDateFormat for every photo.
          *
-         * @param parser The parser containing the XML responses.
+         * @param date The date to format.
          *
-         * @throws XmlPullParserException
-         * @throws IOException
+         * @return The formatted date, or the original date if it could not be parsed.
          */
-        public void parseResponse(XmlPullParser parser) throws XmlPullParserException, IOException;
+        String formatPhotoDate(String date) {
+            if (date == null || date.length() < 10 || date.charAt(4) != '-' ||
+                    date.charAt(7) != '-') {
+                android.util.Log.w(LOG_TAG, "Could not parse photo date: " + date);
+                return date;
+            }
+
+            final int year = parseDigits(date, 0, 4);
+            final int month = parseDigits(date, 5, 7);
+            final int day = parseDigits(date, 8, 10);
+            if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+                android.util.Log.w(LOG_TAG, "Could not parse photo date: " + date);
+                return date;
+            }
+
+            final Locale locale = Locale.getDefault();
+            if (!locale.equals(mLocale)) {
+                mLocale = locale;
+                mMonths = new DateFormatSymbols(locale).getMonths();
+            }
+
+            final StringBuilder builder = mDateBuilder;
+            builder.setLength(0);
+            builder.append(mMonths[month - 1]).append(' ').append(day).append(", ").append(year);
+            return builder.toString();
+        }
+
+        private static int parseDigits(String s, int start, int end) {
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                final char c = s.charAt(i);
+                if (c < '0' || c > '9') return -1;
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
     }
 }
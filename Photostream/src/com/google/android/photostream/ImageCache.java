@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-tier cache used to store the photos downloaded from Flickr. The first tier keeps
+ * decoded Bitmaps in memory, the second tier keeps the raw, encoded, image data on disk.
+ * Both tiers are bounded by a size in bytes and evict the least recently used entries
+ * first.
+ *
+ * Entries are identified by the photo's id and the
+ * {@link com.google.android.photostream.Flickr.PhotoSize} of the image.
+ *
+ * Bitmaps returned by this cache are shared and must not be recycled by the caller.
+ * Evicted Bitmaps are not recycled either, they are simply left to the garbage collector.
+ *
+ * This class is thread safe.
+ */
+final class ImageCache {
+    // Budget for decoded Bitmaps, in bytes of pixel data
+    private static final int MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    // Budget for encoded images stored on disk, in bytes
+    private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static final String DISK_CACHE_DIRECTORY = "photos";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static ImageCache sInstance;
+
+    private final LinkedHashMap<String, Bitmap> mBitmaps =
+            new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+    private final int mMaxMemorySize;
+    private int mMemorySize;
+
+    private final LinkedHashMap<String, Long> mFiles =
+            new LinkedHashMap<String, Long>(32, 0.75f, true);
+    private final File mDirectory;
+    private final long mMaxDiskSize;
+    private long mDiskSize;
+    private boolean mDiskIndexed;
+    // Incremented each time a file is added to the disk cache
+    private int mDiskWriteCount;
+
+    private int mHitCount;
+    private int mDiskHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mDiskEvictionCount;
+
+    private ImageCache(File directory, int maxMemorySize, long maxDiskSize) {
+        mDirectory = directory;
+        mMaxMemorySize = maxMemorySize;
+        mMaxDiskSize = maxDiskSize;
+    }
+
+    /**
+     * Initializes the unique instance of this class. The disk cache is stored in the
+     * application's cache directory. Calling this method more than once has no effect.
+     *
+     * @param context The application's environment.
+     *
+     * @return The unique instance of this class.
+     */
+    static synchronized ImageCache initialize(Context context) {
+        if (sInstance == null) {
+            final File directory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+            sInstance = new ImageCache(directory, MEMORY_CACHE_SIZE, DISK_CACHE_SIZE);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the unique instance of this class.
+     *
+     * @return The unique instance of this class, or null if
+     *         {@link #initialize(android.content.Context)} was never invoked.
+     */
+    static synchronized ImageCache get() {
+        return sInstance;
+    }
+
+    /**
+     * Creates the key identifying a photo at a given size in this cache.
+     *
+     * @param id The id of the photo.
+     * @param size The size of the photo.
+     *
+     * @return A key usable as a file name.
+     */
+    static String createKey(String id, Flickr.PhotoSize size) {
+        return id + '_' + size.name();
+    }
+
+    /**
+     * Returns the decoded Bitmap stored in memory for the specified key.
+     *
+     * @param key The key of the photo, as returned by
+     *        {@link #createKey(String, com.google.android.photostream.Flickr.PhotoSize)}.
+     *
+     * @return A shared Bitmap, or null if the photo is not in the memory cache.
+     */
+    synchronized Bitmap getBitmap(String key) {
+        final Bitmap bitmap = mBitmaps.get(key);
+        if (bitmap != null) mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Stores the specified decoded Bitmap in memory. Least recently used Bitmaps are
+     * evicted until the memory cache fits within its budget.
+     *
+     * @param key The key of the photo.
+     * @param bitmap The decoded photo.
+     */
+    synchronized void putBitmap(String key, Bitmap bitmap) {
+        final int size = sizeOf(bitmap);
+        if (size > mMaxMemorySize) return;
+
+        final Bitmap previous = mBitmaps.put(key, bitmap);
+        if (previous != null) mMemorySize -= sizeOf(previous);
+        mMemorySize += size;
+
+        final Iterator<Bitmap> iterator = mBitmaps.values().iterator();
+        while (mMemorySize > mMaxMemorySize && iterator.hasNext()) {
+            mMemorySize -= sizeOf(iterator.next());
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Reads the encoded image stored on disk for the specified key.
+     *
+     * @param key The key of the photo.
+     * @param data The buffer to read the encoded image into.
+     *
+     * @return True if the image was read, false if the photo is not in the disk cache.
+     */
+    boolean getData(String key, Flickr.PhotoData data) {
+        final File file = new File(mDirectory, key);
+        final InputStream in;
+        final long length;
+        final int writeCount;
+        synchronized (this) {
+            indexDisk();
+            if (mFiles.get(key) == null) {
+                mMissCount++;
+                return false;
+            }
+
+            // The file is opened with the lock held, so that it is the file of the
+            // index entry. Once opened, it can be read even if it is trimmed or
+            // replaced meanwhile.
+            try {
+                in = new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                mMissCount++;
+                removeFile(key);
+                return false;
+            }
+            length = file.length();
+            writeCount = mDiskWriteCount;
+        }
+
+        boolean success = false;
+        try {
+            data.reset((int) length);
+            data.readFrom(in);
+            success = data.mLength == length;
+        } catch (IOException e) {
+            android.util.Log.w(Flickr.LOG_TAG, "Could not read cached photo: " + key, e);
+        } finally {
+            closeStream(in);
+        }
+
+        synchronized (this) {
+            if (success) {
+                mDiskHitCount++;
+                // Keeps the LRU order across restarts
+                file.setLastModified(System.currentTimeMillis());
+            } else {
+                mMissCount++;
+                // Don't remove a file another thread wrote while this one was read
+                if (writeCount == mDiskWriteCount) removeFile(key);
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Stores the specified encoded image on disk. Least recently used files are deleted
+     * until the disk cache fits within its budget.
+     *
+     * @param key The key of the photo.
+     * @param data The encoded image.
+     * @param length The number of valid bytes in data.
+     */
+    void putData(String key, byte[] data, int length) {
+        if (length > mMaxDiskSize) return;
+
+        synchronized (this) {
+            indexDisk();
+        }
+
+        final File file = new File(mDirectory, key);
+        File temp = null;
+
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            // Concurrent writes of the same key each use their own temporary file
+            temp = File.createTempFile(key + '_', TEMP_FILE_SUFFIX, mDirectory);
+            out = new FileOutputStream(temp);
+            out.write(data, 0, length);
+            success = true;
+        } catch (IOException e) {
+            android.util.Log.w(Flickr.LOG_TAG, "Could not cache photo: " + key, e);
+        } finally {
+            closeStream(out);
+        }
+
+        synchronized (this) {
+            if (success && temp.renameTo(file)) {
+                final Long previous = mFiles.put(key, (long) length);
+                if (previous != null) mDiskSize -= previous;
+                mDiskSize += length;
+                mDiskWriteCount++;
+                trimDisk();
+            } else if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes all the decoded Bitmaps from memory. The disk cache is left untouched.
+     */
+    synchronized void clearMemory() {
+        mBitmaps.clear();
+        mMemorySize = 0;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    synchronized int getDiskEvictionCount() {
+        return mDiskEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageCache[memory=" + mMemorySize + "/" + mMaxMemorySize +
+                ", disk=" + mDiskSize + "/" + mMaxDiskSize +
+                ", hits=" + mHitCount + ", diskHits=" + mDiskHitCount +
+                ", misses=" + mMissCount + ", evictions=" + mEvictionCount +
+                ", diskEvictions=" + mDiskEvictionCount + "]";
+    }
+
+    /**
+     * Builds the in-memory index of the disk cache the first time the disk is accessed.
+     * Files are ordered from the least recently used to the most recently used.
+     * Must be invoked with the lock held.
+     */
+    private void indexDisk() {
+        if (mDiskIndexed) return;
+        mDiskIndexed = true;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            android.util.Log.w(Flickr.LOG_TAG, "Could not create cache directory: " + mDirectory);
+            return;
+        }
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                final long m1 = f1.lastModified();
+                final long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            } else {
+                final long length = file.length();
+                mFiles.put(file.getName(), length);
+                mDiskSize += length;
+            }
+        }
+
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently used files until the disk cache fits within its
+     * budget. Must be invoked with the lock held.
+     */
+    private void trimDisk() {
+        final Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+        while (mDiskSize > mMaxDiskSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mDiskSize -= entry.getValue();
+            iterator.remove();
+            mDiskEvictionCount++;
+        }
+    }
+
+    /**
+     * Removes the specified file from the disk cache. Must be invoked with the lock held.
+     */
+    private void removeFile(String key) {
+        final Long length = mFiles.remove(key);
+        if (length != null) mDiskSize -= length;
+        new File(mDirectory, key).delete();
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static void closeStream(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                android.util.Log.e(Flickr.LOG_TAG, "Could not close stream", e);
+            }
+        }
+    }
+}
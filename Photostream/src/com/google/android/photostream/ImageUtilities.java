@@ -18,14 +18,17 @@ package com.google.android.photostream;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 
 import java.util.Random;
 
 /**
- * This class contains various utilities to manipulate Bitmaps. The methods of this class,
- * although static, are not thread safe and cannot be invoked by several threads at the
- * same time. Synchronization is required by the caller.
+ * This class contains various utilities to manipulate Bitmaps. The Bitmaps created by
+ * this class are taken from the {@link BitmapPool} and can be released to the pool when
+ * they are no longer displayed. The Canvas, Paints and Matrix used to draw are reused
+ * by every invocation made on the same thread, which makes the methods of this class
+ * safe to invoke from several threads at the same time.
  */
 final class ImageUtilities {
     private static final float PHOTO_BORDER_WIDTH = 3.0f;
@@ -35,13 +38,28 @@ final class ImageUtilities {
     private static final float ROTATION_ANGLE_EXTRA = 5.5f;
 
     private static final Random sRandom = new Random();
-    private static final Paint sPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-    private static final Paint sStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
-    static {
-        sStrokePaint.setStrokeWidth(PHOTO_BORDER_WIDTH);
-        sStrokePaint.setStyle(Paint.Style.STROKE);
-        sStrokePaint.setColor(PHOTO_BORDER_COLOR);
+    private static final ThreadLocal<FrameContext> sFrameContext = new ThreadLocal<FrameContext>() {
+        @Override
+        protected FrameContext initialValue() {
+            return new FrameContext();
+        }
+    };
+
+    /**
+     * Drawing state reused by all the Bitmaps framed on a given thread.
+     */
+    private static final class FrameContext {
+        final Canvas mCanvas = new Canvas();
+        final Matrix mMatrix = new Matrix();
+        final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        final Paint mStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        FrameContext() {
+            mStrokePaint.setStrokeWidth(PHOTO_BORDER_WIDTH);
+            mStrokePaint.setStyle(Paint.Style.STROKE);
+            mStrokePaint.setColor(PHOTO_BORDER_COLOR);
+        }
     }
 
     /**
@@ -49,7 +67,9 @@ final class ImageUtilities {
      * and ranges, in degrees, from 2.5 to 8. After rotation a frame is overlaid on top
      * of the rotated image.
      *
-     * This method is not thread safe.
+     * The returned Bitmap is sized to contain the image rotated by the largest possible
+     * angle, so that all the photos of a given size produce Bitmaps of the same size
+     * that can be reused through the {@link BitmapPool}.
      *
      * @param bitmap The Bitmap to rotate and apply a frame onto.
      *
@@ -59,7 +79,7 @@ final class ImageUtilities {
         final boolean positive = sRandom.nextFloat() >= 0.5f;
         final float angle = (ROTATION_ANGLE_MIN + sRandom.nextFloat() * ROTATION_ANGLE_EXTRA) *
                 (positive ? 1.0f : -1.0f);
-        final double radAngle = Math.toRadians(angle);
+        final double radAngle = Math.toRadians(ROTATION_ANGLE_MIN + ROTATION_ANGLE_EXTRA);
 
         final int bitmapWidth = bitmap.getWidth();
         final int bitmapHeight = bitmap.getHeight();
@@ -70,18 +90,22 @@ final class ImageUtilities {
         final int strokedWidth = (int) (bitmapWidth + 2 * PHOTO_BORDER_WIDTH);
         final int strokedHeight = (int) (bitmapHeight + 2 * PHOTO_BORDER_WIDTH);
 
-        final int width = (int) (strokedHeight * sinAngle + strokedWidth * cosAngle);
-        final int height = (int) (strokedWidth * sinAngle + strokedHeight * cosAngle);
+        final int width = (int) Math.ceil(strokedHeight * sinAngle + strokedWidth * cosAngle);
+        final int height = (int) Math.ceil(strokedWidth * sinAngle + strokedHeight * cosAngle);
 
         final float x = (width - bitmapWidth) / 2.0f;
         final float y = (height - bitmapHeight) / 2.0f;
 
-        final Bitmap decored = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        final Canvas canvas = new Canvas(decored);
+        final FrameContext context = sFrameContext.get();
+        final Bitmap decored = BitmapPool.get().obtain(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = context.mCanvas;
+        canvas.setBitmap(decored);
 
+        canvas.save();
         canvas.rotate(angle, width / 2.0f, height / 2.0f);
-        canvas.drawBitmap(bitmap, x, y, sPaint);
-        canvas.drawRect(x, y, x + bitmapWidth, y + bitmapHeight, sStrokePaint);
+        canvas.drawBitmap(bitmap, x, y, context.mPaint);
+        canvas.drawRect(x, y, x + bitmapWidth, y + bitmapHeight, context.mStrokePaint);
+        canvas.restore();
 
         return decored;
     }
@@ -90,8 +114,6 @@ final class ImageUtilities {
      * Scales the specified Bitmap to fit within the specified dimensions. After scaling,
      * a frame is overlaid on top of the scaled image.
      *
-     * This method is not thread safe.
-     *
      * @param bitmap The Bitmap to scale to fit the specified dimensions and to apply
      *               a frame onto.
      * @param width The maximum width of the new Bitmap.
@@ -110,16 +132,25 @@ final class ImageUtilities {
         final int scaledWidth = (int) (bitmapWidth * scale);
         final int scaledHeight = (int) (bitmapHeight * scale);
 
-        final Bitmap decored = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
-        final Canvas canvas = new Canvas(decored);
+        final Bitmap.Config config = bitmap.getConfig() != null ?
+                bitmap.getConfig() : Bitmap.Config.ARGB_8888;
 
+        final FrameContext context = sFrameContext.get();
+        final Bitmap decored = BitmapPool.get().obtain(scaledWidth, scaledHeight, config);
+        final Canvas canvas = context.mCanvas;
+        canvas.setBitmap(decored);
+
+        final Matrix matrix = context.mMatrix;
+        matrix.setScale((float) scaledWidth / bitmapWidth, (float) scaledHeight / bitmapHeight);
+        canvas.drawBitmap(bitmap, matrix, context.mPaint);
+
+        final Paint strokePaint = context.mStrokePaint;
         final int offset = (int) (PHOTO_BORDER_WIDTH / 2);
-        sStrokePaint.setAntiAlias(false);
+        strokePaint.setAntiAlias(false);
         canvas.drawRect(offset, offset, scaledWidth - offset - 1,
-                scaledHeight - offset - 1, sStrokePaint);
-        sStrokePaint.setAntiAlias(true);
+                scaledHeight - offset - 1, strokePaint);
+        strokePaint.setAntiAlias(true);
 
         return decored;
-
     }
 }
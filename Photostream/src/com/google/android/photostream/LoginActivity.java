@@ -34,14 +34,15 @@ import android.widget.AdapterView;
 import android.widget.ProgressBar;
 import android.content.Intent;
 import android.content.Context;
-import android.content.ContentValues;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Activity used to login the user. The activity asks for the user name and then add
@@ -69,7 +70,7 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
     private SQLiteDatabase mDatabase;
     private UsersAdapter mAdapter;
 
-    private UserTask<String, Void, Flickr.User> mTask;
+    private UserTask<String, Void, Integer> mTask;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -224,7 +225,8 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
 
     private void onAddUser(String username) {
         // When the user enters his user name, we need to find his NSID before
-        // adding it to the list.
+        // adding it to the list. Several user names separated by commas can be
+        // entered at once.
         mTask = new FindUserTask().execute(username);
     }
 
@@ -232,6 +234,7 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
         int rows = mDatabase.delete(UserDatabase.TABLE_USERS, UserDatabase._ID + "=?",
                 new String[] { id });
         if (rows > 0) {
+            mAdapter.invalidateIcon(Long.parseLong(id));
             mAdapter.refresh();
         }
     }
@@ -305,65 +308,63 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
     }
 
     /**
-     * Background task used to load the user's NSID. The task begins by showing the
-     * progress bar, then loads the user NSID from the network and finally open
-     * PhotostreamActivity.
+     * Background task used to load the users' NSIDs. The task begins by showing the
+     * progress bar, then resolves the user names through the {@link UserImporter},
+     * which looks them up concurrently and adds all the users found in a single
+     * transaction, and finally refreshes the users list.
      */
-    private class FindUserTask extends UserTask<String, Void, Flickr.User> {
+    private class FindUserTask extends UserTask<String, Void, Integer> {
         @Override
         public void onPreExecute() {
             showProgress();
         }
 
-        public Flickr.User doInBackground(String... params) {
-            final String name = params[0].trim();
-            if (name.length() == 0) return null;
+        public Integer doInBackground(String... params) {
+            final List<String> names = UserImporter.parseUserNames(params[0]);
+            if (names.isEmpty()) return 0;
 
-            final Flickr.User user = Flickr.get().findByUserName(name);
-            if (isCancelled() || user == null) return null;
-
-            Flickr.UserInfo info = Flickr.get().getUserInfo(user);
-            if (isCancelled() || info == null) return null;
-
-            String realname = info.getRealName();
-            if (realname == null) realname = name;
-
-            final ContentValues values = new ContentValues();
-            values.put(UserDatabase.COLUMN_USERNAME, name);
-            values.put(UserDatabase.COLUMN_REALNAME, realname);
-            values.put(UserDatabase.COLUMN_NSID, user.getId());
-            values.put(UserDatabase.COLUMN_LAST_UPDATE, System.currentTimeMillis());
-            UserDatabase.writeBitmap(values, UserDatabase.COLUMN_BUDDY_ICON,
-                    info.loadBuddyIcon());
-
-            long result = -1;
-            if (!isCancelled()) {
-                result = mDatabase.insert(UserDatabase.TABLE_USERS,
-                        UserDatabase.COLUMN_REALNAME, values);
-            }
-
-            return result != -1 ? user : null;
+            return UserImporter.importUsers(mDatabase, names);
         }
 
         @Override
-        public void onPostExecute(Flickr.User user) {
-            if (user == null) {
+        public void onPostExecute(Integer count) {
+            if (count == 0) {
                 onError();
             } else {
                 mAdapter.refresh();
                 hideProgress();
+                // The first contacts added must start the checks for updates
+                CheckUpdateService.schedule(LoginActivity.this);
             }
         }
     }
 
+    /**
+     * Adapter binding the users stored in the database to the users list. Decoded buddy
+     * icons are kept in a small LRU, keyed by row id, so that scrolling through the list
+     * does not decode the same icons over and over.
+     */
     private class UsersAdapter extends CursorAdapter {
+        // Maximum number of decoded buddy icons kept in memory
+        private static final int MAX_CACHED_ICONS = 32;
+
         private final LayoutInflater mInflater;
         private final int mRealname;
         private final int mId;
         private final int mNsid;
         private final int mBuddyIcon;
         private final Drawable mDefaultIcon;
-        private final HashMap<String, Drawable> mIcons = new HashMap<String, Drawable>();
+        private final LinkedHashMap<Long, Drawable> mIcons =
+                new LinkedHashMap<Long, Drawable>(MAX_CACHED_ICONS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Drawable> eldest) {
+                if (size() > MAX_CACHED_ICONS) {
+                    eldest.getValue().setCallback(null);
+                    return true;
+                }
+                return false;
+            }
+        };
 
         public UsersAdapter(Context context, Cursor cursor) {
             super(context, cursor, true);
@@ -386,13 +387,14 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
 
         public void bindView(View view, Context context, Cursor cursor) {
             final UserDescription description = (UserDescription) view.getTag();
-            description.id = cursor.getString(mId);
+            final long id = cursor.getLong(mId);
+            description.id = String.valueOf(id);
             description.nsid = cursor.getString(mNsid);
 
             final TextView textView = (TextView) view;
             textView.setText(cursor.getString(mRealname));
 
-            Drawable icon = mIcons.get(description.nsid);
+            Drawable icon = mIcons.get(id);
             if (icon == null) {
                 final byte[] data = cursor.getBlob(mBuddyIcon);
 
@@ -405,16 +407,28 @@ public class LoginActivity extends Activity implements View.OnKeyListener,
                     icon = mDefaultIcon;
                 }
 
-                mIcons.put(description.nsid, icon);
+                mIcons.put(id, icon);
             }
 
             textView.setCompoundDrawablesWithIntrinsicBounds(icon, null, null, null);
         }
 
+        /**
+         * Discards the decoded buddy icon of the specified row. Must be invoked whenever
+         * the row is updated or deleted.
+         *
+         * @param id The id of the row.
+         */
+        void invalidateIcon(long id) {
+            final Drawable icon = mIcons.remove(id);
+            if (icon != null) icon.setCallback(null);
+        }
+
         void cleanup() {
             for (Drawable icon : mIcons.values()) {
                 icon.setCallback(null);
             }
+            mIcons.clear();
         }
 
         void refresh() {
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import org.apache.http.client.methods.HttpGet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-stage pipeline used to load photos in the background. The first stage downloads
+ * the encoded images on a small pool of threads, so that several network round trips
+ * can be in flight at the same time. The second stage decodes the downloaded images,
+ * one at a time, on a dedicated thread.
+ *
+ * Each photo is loaded through a {@link java.util.concurrent.Future}. Cancelling the
+ * future aborts the download if it is still in progress.
+ */
+final class PhotoFetcher {
+    private static final int FETCH_THREADS = 4;
+
+    private static final ExecutorService sFetchExecutor =
+            Executors.newFixedThreadPool(FETCH_THREADS, new BackgroundThreadFactory("Fetch"));
+    private static final ExecutorService sDecodeExecutor =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("Decode"));
+
+    private PhotoFetcher() {
+    }
+
+    /**
+     * Starts loading the specified photo at the specified size. If the decoded photo
+     * is already in memory, the returned future is already done.
+     *
+     * @param photo The photo to load.
+     * @param size The size of the photo to load.
+     *
+     * @return A future whose result is a shared Bitmap that must not be recycled, or
+     *         null if the photo could not be loaded.
+     */
+    static Future<Bitmap> load(Flickr.Photo photo, Flickr.PhotoSize size) {
+        final PhotoRequest request = new PhotoRequest(photo, size);
+
+        final Bitmap bitmap = photo.peekPhotoBitmap(size);
+        if (bitmap != null) {
+            request.mDecode.set(bitmap);
+        } else {
+            sFetchExecutor.execute(request.mFetch);
+        }
+
+        return request;
+    }
+
+    /**
+     * Waits for the specified load to complete and returns its result. Errors and
+     * cancellations are reported as a null result. If the calling thread is interrupted
+     * while waiting, the interrupted status of the thread is preserved.
+     *
+     * @param request The load to wait for.
+     *
+     * @return The loaded Bitmap, or null.
+     */
+    static Bitmap getResult(Future<Bitmap> request) {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            android.util.Log.e(Flickr.LOG_TAG, "Could not load photo", e.getCause());
+        } catch (CancellationException e) {
+            // Ignore
+        }
+        return null;
+    }
+
+    /**
+     * A single photo going through the pipeline. Once the fetch stage is done, the
+     * decode stage is queued, whether the fetch succeeded or not, to make sure that
+     * callers waiting on the result are always released.
+     */
+    private static class PhotoRequest implements Future<Bitmap> {
+        final FetchTask mFetch;
+        final DecodeTask mDecode;
+
+        PhotoRequest(final Flickr.Photo photo, final Flickr.PhotoSize size) {
+            final HttpGet get = new HttpGet(photo.getUrl(size));
+            mFetch = new FetchTask(new Callable<Flickr.PhotoData>() {
+                public Flickr.PhotoData call() throws Exception {
+                    return photo.loadPhotoData(size, get, true);
+                }
+            }, get);
+
+            mDecode = new DecodeTask(new Callable<Bitmap>() {
+                public Bitmap call() throws Exception {
+                    final Flickr.PhotoData data = PhotoRequest.this.mFetch.get();
+                    try {
+                        return photo.decodePhotoBitmap(size, data, 0, 0);
+                    } finally {
+                        if (data != null) data.recycle();
+                    }
+                }
+            });
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mFetch.cancel(mayInterruptIfRunning);
+            return mDecode.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return mDecode.isCancelled();
+        }
+
+        public boolean isDone() {
+            return mDecode.isDone();
+        }
+
+        public Bitmap get() throws InterruptedException, ExecutionException {
+            return mDecode.get();
+        }
+
+        public Bitmap get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            return mDecode.get(timeout, unit);
+        }
+
+        private class FetchTask extends FutureTask<Flickr.PhotoData> {
+            private final HttpGet mGet;
+
+            FetchTask(Callable<Flickr.PhotoData> callable, HttpGet get) {
+                super(callable);
+                mGet = get;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (!super.cancel(mayInterruptIfRunning)) return false;
+                // Interrupting the thread is not enough while it is blocked on the network
+                if (mayInterruptIfRunning) mGet.abort();
+                return true;
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    mDecode.cancel(false);
+                } else {
+                    sDecodeExecutor.execute(mDecode);
+                }
+            }
+        }
+    }
+
+    private static class DecodeTask extends FutureTask<Bitmap> {
+        DecodeTask(Callable<Bitmap> callable) {
+            super(callable);
+        }
+
+        // Widens access so that PhotoFetcher can complete a request from the memory cache
+        @Override
+        protected void set(Bitmap bitmap) {
+            super.set(bitmap);
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mName;
+
+        BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "PhotoFetcher " + mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
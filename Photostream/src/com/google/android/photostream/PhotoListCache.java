@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Persistent cache of the pages of photostreams and of the NSIDs resolved from user
+ * names. Cached pages let PhotostreamActivity display a photostream immediately, and
+ * while offline; the page is then refreshed from Flickr in the background once it has
+ * expired.
+ *
+ * Pages are keyed by the user's NSID, the number of photos per page and the page index.
+ * Each page is stored as a single compact BLOB, written with
+ * {@link com.google.android.photostream.Flickr.PhotoList#writeTo(java.io.DataOutputStream)}.
+ *
+ * This class is thread safe.
+ */
+final class PhotoListCache extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "photolists";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_PHOTO_LISTS = "photo_lists";
+    private static final String TABLE_USER_IDS = "user_ids";
+
+    private static final String COLUMN_NSID = "nsid";
+    private static final String COLUMN_PER_PAGE = "per_page";
+    private static final String COLUMN_PAGE = "page";
+    private static final String COLUMN_PHOTOS = "photos";
+    private static final String COLUMN_USERNAME = "username";
+    private static final String COLUMN_UPDATED = "updated";
+
+    // Age after which a cached page must be refreshed from Flickr
+    private static final long PHOTO_LIST_TTL = 10 * 60 * 1000;
+    // Age after which a resolved NSID is looked up again
+    private static final long USER_ID_TTL = 30L * 24 * 60 * 60 * 1000;
+    // Age after which a cached page is deleted
+    private static final long PHOTO_LIST_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String[] PHOTO_LIST_PROJECTION = { COLUMN_PHOTOS, COLUMN_UPDATED };
+    private static final String PHOTO_LIST_SELECTION =
+            COLUMN_NSID + "=? AND " + COLUMN_PER_PAGE + "=? AND " + COLUMN_PAGE + "=?";
+
+    private static final String[] USER_ID_PROJECTION = { COLUMN_NSID, COLUMN_UPDATED };
+    private static final String USER_ID_SELECTION = COLUMN_USERNAME + "=?";
+
+    private static PhotoListCache sInstance;
+
+    private boolean mPurged;
+
+    /**
+     * A page read from the cache.
+     */
+    static final class Entry {
+        final Flickr.PhotoList mPhotos;
+        final boolean mExpired;
+
+        private Entry(Flickr.PhotoList photos, boolean expired) {
+            mPhotos = photos;
+            mExpired = expired;
+        }
+    }
+
+    private PhotoListCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Initializes the unique instance of this class. Calling this method more than
+     * once has no effect. The database is only opened the first time it is accessed.
+     *
+     * @param context The application's environment.
+     *
+     * @return The unique instance of this class.
+     */
+    static synchronized PhotoListCache initialize(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoListCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE photo_lists ("
+                + "nsid TEXT NOT NULL, "
+                + "per_page INTEGER NOT NULL, "
+                + "page INTEGER NOT NULL, "
+                + "photos BLOB, "
+                + "updated INTEGER, "
+                + "PRIMARY KEY (nsid, per_page, page));");
+
+        db.execSQL("CREATE TABLE user_ids ("
+                + "username TEXT PRIMARY KEY, "
+                + "nsid TEXT, "
+                + "updated INTEGER);");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The content of this database can always be downloaded again
+        db.execSQL("DROP TABLE IF EXISTS photo_lists");
+        db.execSQL("DROP TABLE IF EXISTS user_ids");
+        onCreate(db);
+    }
+
+    /**
+     * Returns the cached page of the specified user's photostream.
+     *
+     * @param user The user whose photostream was cached.
+     * @param perPage The number of photos per page.
+     * @param page The index, starting at 1, of the page.
+     *
+     * @return The cached page, expired or not, or null if the page is not in the cache.
+     */
+    Entry getPhotoList(Flickr.User user, int perPage, int page) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE_PHOTO_LISTS, PHOTO_LIST_PROJECTION,
+                    PHOTO_LIST_SELECTION, new String[] { user.getId(), String.valueOf(perPage),
+                            String.valueOf(page) }, null, null, null);
+            if (!cursor.moveToFirst()) return null;
+
+            final byte[] data = cursor.getBlob(0);
+            final long age = System.currentTimeMillis() - cursor.getLong(1);
+
+            final Flickr.PhotoList photos = Flickr.PhotoList.readFrom(
+                    new DataInputStream(new ByteArrayInputStream(data)));
+            return new Entry(photos, age < 0 || age > PHOTO_LIST_TTL);
+        } catch (IOException e) {
+            Log.w(Flickr.LOG_TAG, "Could not read cached photos for user: " + user, e);
+        } catch (SQLiteException e) {
+            Log.w(Flickr.LOG_TAG, "Could not read cached photos for user: " + user, e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores the specified page of a user's photostream. Lists that were not loaded
+     * successfully are ignored, so that a failed refresh does not replace a valid page.
+     *
+     * @param user The user who owns the photos.
+     * @param perPage The number of photos per page used to load the list.
+     * @param photos The page to store.
+     */
+    void putPhotoList(Flickr.User user, int perPage, Flickr.PhotoList photos) {
+        if (photos == null || photos.getPageCount() == 0) return;
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(perPage * 128);
+        try {
+            final DataOutputStream out = new DataOutputStream(buffer);
+            photos.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            Log.w(Flickr.LOG_TAG, "Could not cache photos for user: " + user, e);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_NSID, user.getId());
+        values.put(COLUMN_PER_PAGE, perPage);
+        values.put(COLUMN_PAGE, photos.getPage());
+        values.put(COLUMN_PHOTOS, buffer.toByteArray());
+        values.put(COLUMN_UPDATED, now);
+
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.replace(TABLE_PHOTO_LISTS, null, values);
+            purge(db, now);
+        } catch (SQLiteException e) {
+            Log.w(Flickr.LOG_TAG, "Could not cache photos for user: " + user, e);
+        }
+    }
+
+    /**
+     * Returns the NSID previously resolved for the specified user name.
+     *
+     * @param userName The name of the user.
+     *
+     * @return The user, or null if the user name was never resolved or was resolved
+     *         too long ago.
+     */
+    Flickr.User getUser(String userName) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE_USER_IDS, USER_ID_PROJECTION,
+                    USER_ID_SELECTION, new String[] { userName }, null, null, null);
+            if (cursor.moveToFirst()) {
+                final long age = System.currentTimeMillis() - cursor.getLong(1);
+                if (age >= 0 && age <= USER_ID_TTL) {
+                    return Flickr.User.fromId(cursor.getString(0));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(Flickr.LOG_TAG, "Could not read cached NSID for user: " + userName, e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores the NSID resolved for the specified user name.
+     *
+     * @param userName The name of the user.
+     * @param user The user found for that name.
+     */
+    void putUser(String userName, Flickr.User user) {
+        if (user == null) return;
+
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_USERNAME, userName);
+        values.put(COLUMN_NSID, user.getId());
+        values.put(COLUMN_UPDATED, System.currentTimeMillis());
+
+        try {
+            getWritableDatabase().replace(TABLE_USER_IDS, null, values);
+        } catch (SQLiteException e) {
+            Log.w(Flickr.LOG_TAG, "Could not cache NSID for user: " + userName, e);
+        }
+    }
+
+    /**
+     * Deletes the pages that were not refreshed for a long time. The purge runs at
+     * most once per process.
+     */
+    private void purge(SQLiteDatabase db, long now) {
+        synchronized (this) {
+            if (mPurged) return;
+            mPurged = true;
+        }
+
+        db.delete(TABLE_PHOTO_LISTS, COLUMN_UPDATED + "<?",
+                new String[] { String.valueOf(now - PHOTO_LIST_MAX_AGE) });
+    }
+}
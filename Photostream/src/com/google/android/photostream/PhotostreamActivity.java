@@ -34,8 +34,12 @@ import android.graphics.drawable.BitmapDrawable;
 import android.widget.ImageView;
 import android.widget.ViewAnimator;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Random;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Activity used to display a Flickr user's photostream. This activity shows a fixed
@@ -58,6 +62,10 @@ public class PhotostreamActivity extends Activity implements
 
     private static final int PHOTOS_COUNT_PER_PAGE = 6;
 
+    // Maximum amount of decoded thumbnails, in bytes, kept in memory by the prefetcher.
+    // Thumbnails beyond this budget are only prefetched in the disk cache.
+    private static final int PREFETCH_MEMORY_BUDGET = 256 * 1024;
+
     private Flickr.User mUser;
     private int mCurrentPage = 1;
     private int mPageCount = 0;
@@ -73,7 +81,15 @@ public class PhotostreamActivity extends Activity implements
     private LayoutAnimationController mNextAnimation;
     private LayoutAnimationController mBackAnimation;
 
+    private PhotoListCache mPhotoListCache;
+
     private UserTask<?, ?, ?> mTask;
+    private RefreshPhotoListTask mRefreshTask;
+    private Flickr.PhotoList mRefreshedPhotos;
+    private Flickr.PhotoList mDisplayedPhotos;
+    private PrefetchTask mPrefetchTask;
+    private final HashMap<Integer, Flickr.PhotoList> mPrefetchedPages =
+            new HashMap<Integer, Flickr.PhotoList>();
     private String mUsername;
 
     @Override
@@ -81,6 +97,8 @@ public class PhotostreamActivity extends Activity implements
         super.onCreate(savedInstanceState);
 
         clearNotification();
+        ImageCache.initialize(this);
+        mPhotoListCache = PhotoListCache.initialize(this);
 
         // Try to find a user name in the saved instance state or the intent
         // that launched the activity. If no valid user NSID can be found, we
@@ -207,6 +225,16 @@ public class PhotostreamActivity extends Activity implements
         if (mTask != null && mTask.getStatus() == UserTask.Status.RUNNING) {
             mTask.cancel(true);
         }
+        cancelPrefetch();
+        cancelRefresh();
+
+        final ImageCache cache = ImageCache.get();
+        if (cache != null) {
+            android.util.Log.d(Flickr.LOG_TAG, cache.toString());
+        }
+        android.util.Log.d(Flickr.LOG_TAG, BitmapPool.get().toString());
+        android.util.Log.d(Flickr.LOG_TAG, Flickr.get().getConnectionMetrics().toString());
+        android.util.Log.d(Flickr.LOG_TAG, Flickr.get().getApiRequests().toString());
     }
 
     public void onClick(View v) {
@@ -251,7 +279,12 @@ public class PhotostreamActivity extends Activity implements
     private void loadPhotos() {
         final Object data = getLastNonConfigurationInstance();
         if (data == null) {
-            mTask = new GetPhotoListTask().execute(mCurrentPage);
+            final Flickr.PhotoList prefetched = mPrefetchedPages.get(mCurrentPage);
+            if (prefetched != null) {
+                showPhotos(prefetched);
+            } else {
+                mTask = new GetPhotoListTask().execute(mCurrentPage);
+            }
         } else {
             final LoadedPhoto[] photos = (LoadedPhoto[]) data;
             for (LoadedPhoto photo : photos) {
@@ -263,6 +296,7 @@ public class PhotostreamActivity extends Activity implements
     }
 
     private void showPhotos(Flickr.PhotoList photos) {
+        mDisplayedPhotos = photos;
         mTask = new LoadPhotosTask().execute(photos);
     }
 
@@ -272,14 +306,103 @@ public class PhotostreamActivity extends Activity implements
 
     private void onNext() {
         mCurrentPage++;
+        cancelPrefetch();
+        cancelRefresh();
         animateAndLoadPhotos(mNextAnimation);
     }
 
     private void onBack() {
         mCurrentPage--;
+        cancelPrefetch();
+        cancelRefresh();
         animateAndLoadPhotos(mBackAnimation);
     }
 
+    /**
+     * Starts prefetching the pages adjacent to the current page, next page first,
+     * unless they were already prefetched. Prefetched pages that are no longer
+     * adjacent to the current page are discarded.
+     */
+    private void startPrefetch() {
+        cancelPrefetch();
+
+        final Iterator<Integer> pages = mPrefetchedPages.keySet().iterator();
+        while (pages.hasNext()) {
+            final int page = pages.next();
+            if (page < mCurrentPage - 1 || page > mCurrentPage + 1) pages.remove();
+        }
+
+        final ArrayList<Integer> pending = new ArrayList<Integer>(2);
+        if (mCurrentPage < mPageCount && !mPrefetchedPages.containsKey(mCurrentPage + 1)) {
+            pending.add(mCurrentPage + 1);
+        }
+        if (mCurrentPage > 1 && !mPrefetchedPages.containsKey(mCurrentPage - 1)) {
+            pending.add(mCurrentPage - 1);
+        }
+
+        if (pending.size() > 0) {
+            mPrefetchTask = new PrefetchTask(mUser);
+            mPrefetchTask.setPriority(TaskExecutor.PRIORITY_PREFETCH);
+            mPrefetchTask.execute(pending.toArray(new Integer[pending.size()]));
+        }
+    }
+
+    private void cancelPrefetch() {
+        if (mPrefetchTask != null && mPrefetchTask.getStatus() == UserTask.Status.RUNNING) {
+            mPrefetchTask.cancel(true);
+        }
+        mPrefetchTask = null;
+    }
+
+    /**
+     * Starts reloading the current page from Flickr, to reconcile the cached page
+     * being displayed with the user's photostream.
+     */
+    private void startRefresh() {
+        cancelRefresh();
+        mRefreshTask = new RefreshPhotoListTask(mUser);
+        mRefreshTask.execute(mCurrentPage);
+    }
+
+    private void cancelRefresh() {
+        if (mRefreshTask != null && mRefreshTask.getStatus() == UserTask.Status.RUNNING) {
+            mRefreshTask.cancel(true);
+        }
+        mRefreshTask = null;
+        mRefreshedPhotos = null;
+    }
+
+    /**
+     * Replaces the photos currently displayed with the specified page, if it differs
+     * from the displayed page. If the displayed page is still loading, the replacement
+     * is deferred until it is done.
+     *
+     * @param photos The page freshly loaded from Flickr.
+     *
+     * @return True if the displayed photos are being replaced.
+     */
+    private boolean reconcilePhotos(Flickr.PhotoList photos) {
+        if (photos.getPage() != mCurrentPage) return false;
+
+        if (mTask != null) {
+            mRefreshedPhotos = photos;
+            return false;
+        }
+        mRefreshedPhotos = null;
+
+        final Flickr.PhotoList displayed = mDisplayedPhotos;
+        if (displayed != null && displayed.hasSamePhotos(photos)) return false;
+
+        cancelPrefetch();
+        mPrefetchedPages.clear();
+
+        mSwitcher.showNext();
+        releasePhotos();
+        showPhotos(photos);
+
+        return true;
+    }
+
     private void animateAndLoadPhotos(LayoutAnimationController animation) {
         mSwitcher.showNext();
         mGrid.setLayoutAnimationListener(this);
@@ -290,10 +413,33 @@ public class PhotostreamActivity extends Activity implements
     public void onAnimationEnd(Animation animation) {
         mGrid.setLayoutAnimationListener(null);
         mGrid.setLayoutAnimation(null);
-        mGrid.removeAllViews();
+        releasePhotos();
         loadPhotos();
     }
 
+    /**
+     * Removes all the photos from the grid and gives their framed Bitmaps back to
+     * the {@link BitmapPool} so they can be reused by the next page.
+     */
+    private void releasePhotos() {
+        final GridLayout grid = mGrid;
+        final int count = grid.getChildCount();
+        final Bitmap[] bitmaps = new Bitmap[count];
+
+        for (int i = 0; i < count; i++) {
+            final ImageView v = (ImageView) grid.getChildAt(i);
+            bitmaps[i] = ((BitmapDrawable) v.getDrawable()).getBitmap();
+            v.setImageDrawable(null);
+        }
+
+        grid.removeAllViews();
+
+        final BitmapPool pool = BitmapPool.get();
+        for (Bitmap bitmap : bitmaps) {
+            pool.release(bitmap);
+        }
+    }
+
     public void onAnimationStart(Animation animation) {
     }
 
@@ -326,9 +472,11 @@ public class PhotostreamActivity extends Activity implements
     }    
 
     /**
-     * Background task used to load each individual photo. The task loads each photo
-     * in order and publishes each loaded Bitmap as a progress unit. The tasks ends
-     * by hiding the progress bar and showing the menu.
+     * Background task used to load each individual photo. The task starts loading all
+     * the photos at once through the {@link PhotoFetcher} and publishes each loaded
+     * Bitmap as a progress unit, in the order of the list. The tasks ends by hiding the
+     * progress bar and showing the menu. Cancelling the task cancels the downloads
+     * still in flight.
      */
     private class LoadPhotosTask extends UserTask<Flickr.PhotoList, LoadedPhoto, Flickr.PhotoList> {
         private final Random mRandom;
@@ -341,19 +489,33 @@ public class PhotostreamActivity extends Activity implements
             final Flickr.PhotoList list = params[0];
             final int count = list.getCount();
 
+            final ArrayList<Future<Bitmap>> requests = new ArrayList<Future<Bitmap>>(count);
             for (int i = 0; i < count; i++) {
-                if (isCancelled()) break;
+                requests.add(PhotoFetcher.load(list.get(i), Flickr.PhotoSize.THUMBNAIL));
+            }
 
-                final Flickr.Photo photo = list.get(i);
-                Bitmap bitmap = photo.loadPhotoBitmap(Flickr.PhotoSize.THUMBNAIL);
-                if (!isCancelled()) {
-                    if (bitmap == null) {
-                        final boolean portrait = mRandom.nextFloat() >= 0.5f;
-                        bitmap = BitmapFactory.decodeResource(getResources(), portrait ?
-                            R.drawable.not_found_small_1 : R.drawable.not_found_small_2);
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (isCancelled()) break;
+
+                    final Flickr.Photo photo = list.get(i);
+                    Bitmap bitmap = PhotoFetcher.getResult(requests.get(i));
+                    if (!isCancelled()) {
+                        // Photos are shared with the image cache and must not be recycled
+                        final boolean recycle = bitmap == null;
+                        if (bitmap == null) {
+                            final boolean portrait = mRandom.nextFloat() >= 0.5f;
+                            bitmap = BitmapFactory.decodeResource(getResources(), portrait ?
+                                R.drawable.not_found_small_1 : R.drawable.not_found_small_2);
+                        }
+                        publishProgress(new LoadedPhoto(ImageUtilities.rotateAndFrame(bitmap),
+                                photo));
+                        if (recycle) bitmap.recycle();
                     }
-                    publishProgress(new LoadedPhoto(ImageUtilities.rotateAndFrame(bitmap), photo));
-                    bitmap.recycle();
+                }
+            } finally {
+                for (Future<Bitmap> request : requests) {
+                    request.cancel(true);
                 }
             }
 
@@ -379,26 +541,148 @@ public class PhotostreamActivity extends Activity implements
             prepareMenu(mPageCount);
             mSwitcher.showNext();
             mTask = null;            
+
+            if (mRefreshedPhotos == null || !reconcilePhotos(mRefreshedPhotos)) {
+                startPrefetch();
+            }
+        }
+    }
+
+    /**
+     * Background task used to prefetch the photo lists of the pages adjacent to the
+     * current page, along with their thumbnails, so that turning the page does not
+     * have to wait for the network. The task runs with a prefetch priority and each
+     * list is published as soon as it is loaded. Thumbnails are stored in the disk
+     * cache and, within {@link PhotostreamActivity#PREFETCH_MEMORY_BUDGET}, decoded
+     * in the memory cache.
+     */
+    private class PrefetchTask extends UserTask<Integer, Flickr.PhotoList, Void> {
+        private final Flickr.User mPrefetchUser;
+
+        PrefetchTask(Flickr.User user) {
+            mPrefetchUser = user;
+        }
+
+        public Void doInBackground(Integer... pages) {
+            int budget = PREFETCH_MEMORY_BUDGET;
+
+            for (int page : pages) {
+                if (isCancelled()) break;
+
+                final Flickr.PhotoList list = Flickr.get().getPublicPhotos(mPrefetchUser,
+                        PHOTOS_COUNT_PER_PAGE, page);
+                // A page that cannot be loaded, for instance while offline, is skipped
+                if (isCancelled() || list.getPageCount() == 0 || list.getCount() == 0) continue;
+                mPhotoListCache.putPhotoList(mPrefetchUser, PHOTOS_COUNT_PER_PAGE, list);
+                publishProgress(list);
+
+                final int count = list.getCount();
+                for (int i = 0; i < count && !isCancelled(); i++) {
+                    final Flickr.Photo photo = list.get(i);
+                    if (photo.peekPhotoBitmap(Flickr.PhotoSize.THUMBNAIL) != null) continue;
+
+                    final Flickr.PhotoData data = photo.loadPhotoData(Flickr.PhotoSize.THUMBNAIL);
+                    if (data == null) continue;
+
+                    try {
+                        if (budget > 0 && !isCancelled()) {
+                            final Bitmap bitmap = photo.decodePhotoBitmap(
+                                    Flickr.PhotoSize.THUMBNAIL, data, 0, 0);
+                            if (bitmap != null) budget -= bitmap.getRowBytes() * bitmap.getHeight();
+                        }
+                    } finally {
+                        data.recycle();
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public void onProgressUpdate(Flickr.PhotoList... lists) {
+            // A cancelled prefetch may still deliver a page from a stale list
+            if (isCancelled()) return;
+            final Flickr.PhotoList list = lists[0];
+            mPrefetchedPages.put(list.getPage(), list);
+        }
+
+        @Override
+        public void onPostExecute(Void result) {
+            if (mPrefetchTask == this) mPrefetchTask = null;
         }
     }
 
     /**
-     * Background task used to load the list of photos. The tasks queries Flickr for the
-     * list of photos to display and ends by starting the LoadPhotosTask.
+     * Background task used to load the list of photos. The task first looks for the
+     * list, and for the user's NSID, in the {@link PhotoListCache}. Lists missing from
+     * the cache are queried from Flickr. The tasks ends by starting the LoadPhotosTask
+     * and, if the cached list has expired, a RefreshPhotoListTask.
      */
     private class GetPhotoListTask extends UserTask<Integer, Void, Flickr.PhotoList> {
+        private boolean mExpired;
+
         public Flickr.PhotoList doInBackground(Integer... params) {
+            final PhotoListCache cache = mPhotoListCache;
+
             if (mUsername != null) {
-                mUser = Flickr.get().findByUserName(mUsername);
+                Flickr.User user = cache.getUser(mUsername);
+                if (user == null) {
+                    user = Flickr.get().findByUserName(mUsername);
+                    cache.putUser(mUsername, user);
+                }
+                mUser = user;
                 mUsername = null;
             }
-            return Flickr.get().getPublicPhotos(mUser, PHOTOS_COUNT_PER_PAGE, params[0]);
+
+            final PhotoListCache.Entry entry = cache.getPhotoList(mUser,
+                    PHOTOS_COUNT_PER_PAGE, params[0]);
+            if (entry != null) {
+                mExpired = entry.mExpired;
+                return entry.mPhotos;
+            }
+
+            final Flickr.PhotoList photos = Flickr.get().getPublicPhotos(mUser,
+                    PHOTOS_COUNT_PER_PAGE, params[0]);
+            cache.putPhotoList(mUser, PHOTOS_COUNT_PER_PAGE, photos);
+            return photos;
         }
 
         @Override
         public void onPostExecute(Flickr.PhotoList photoList) {
             showPhotos(photoList);
-            mTask = null;
+            if (mExpired) startRefresh();
+        }
+    }
+
+    /**
+     * Background task used to reload an expired page from Flickr while the cached
+     * page is displayed. The fresh page is stored in the {@link PhotoListCache} and
+     * replaces the displayed page if they differ. A page that cannot be loaded, for
+     * instance while offline, leaves the cached page in place.
+     */
+    private class RefreshPhotoListTask extends UserTask<Integer, Void, Flickr.PhotoList> {
+        private final Flickr.User mRefreshUser;
+
+        RefreshPhotoListTask(Flickr.User user) {
+            mRefreshUser = user;
+        }
+
+        public Flickr.PhotoList doInBackground(Integer... params) {
+            final Flickr.PhotoList photos = Flickr.get().getPublicPhotos(mRefreshUser,
+                    PHOTOS_COUNT_PER_PAGE, params[0]);
+            if (photos.getPageCount() == 0) return null;
+
+            mPhotoListCache.putPhotoList(mRefreshUser, PHOTOS_COUNT_PER_PAGE, photos);
+            return photos;
+        }
+
+        @Override
+        public void onPostExecute(Flickr.PhotoList result) {
+            if (mRefreshTask != this) return;
+            mRefreshTask = null;
+
+            if (result != null && !isCancelled()) reconcilePhotos(result);
         }
     }
 
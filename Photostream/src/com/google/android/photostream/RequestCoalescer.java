@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces identical requests. While a request is in flight, callers making the same
+ * request, identified by a key, wait for it and share its result instead of executing
+ * the request again. Successful results are then kept for a short time so that
+ * immediate repeats do not execute the request either.
+ *
+ * Failures are shared with the callers waiting for the request but are never kept.
+ *
+ * This class is thread safe.
+ */
+final class RequestCoalescer {
+    /**
+     * A request whose result can be shared.
+     */
+    interface Request<T> {
+        /**
+         * Executes the request on the calling thread.
+         *
+         * @return The result of the request.
+         *
+         * @throws IOException If the request fails.
+         */
+        T execute() throws IOException;
+    }
+
+    private final HashMap<String, FutureTask<Object>> mInFlight =
+            new HashMap<String, FutureTask<Object>>();
+    private final LinkedHashMap<String, CachedResult> mResults;
+    private final long mTimeToLive;
+
+    private int mExecutedCount;
+    private int mSharedCount;
+    private int mCachedCount;
+
+    /**
+     * Creates a new coalescer.
+     *
+     * @param timeToLive Time, in milliseconds, during which results are kept.
+     * @param maxResults Maximum number of results kept at the same time.
+     */
+    RequestCoalescer(long timeToLive, final int maxResults) {
+        mTimeToLive = timeToLive;
+        mResults = new LinkedHashMap<String, CachedResult>(maxResults, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > maxResults;
+            }
+        };
+    }
+
+    /**
+     * Returns the result of the specified request. The request is executed on the
+     * calling thread unless an identical request is in flight, or completed recently.
+     *
+     * @param key The key identifying the request, for instance its URL.
+     * @param request The request to execute.
+     *
+     * @return The result of the request, possibly shared with other callers.
+     *
+     * @throws IOException If the request fails, or if the calling thread is interrupted
+     *         while waiting for another caller's request.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T execute(String key, final Request<T> request) throws IOException {
+        FutureTask<Object> task;
+        boolean owner = false;
+
+        synchronized (this) {
+            final CachedResult cached = mResults.get(key);
+            if (cached != null) {
+                if (SystemClock.uptimeMillis() - cached.mTime < mTimeToLive) {
+                    mCachedCount++;
+                    return (T) cached.mValue;
+                }
+                mResults.remove(key);
+            }
+
+            task = mInFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<Object>(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        return request.execute();
+                    }
+                });
+                mInFlight.put(key, task);
+                mExecutedCount++;
+                owner = true;
+            } else {
+                mSharedCount++;
+            }
+        }
+
+        if (owner) {
+            task.run();
+            synchronized (this) {
+                // Publish the result in the same step that ends the request, otherwise
+                // a caller arriving in between would find neither and execute it again
+                mInFlight.remove(key);
+                cacheResult(key, task);
+            }
+        }
+
+        try {
+            return (T) task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            final IOException ioe = new IOException("Could not execute " + key);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Keeps the result of a completed task. Failures are not kept.
+     */
+    private void cacheResult(String key, FutureTask<Object> task) {
+        try {
+            mResults.put(key, new CachedResult(task.get(), SystemClock.uptimeMillis()));
+        } catch (ExecutionException e) {
+            // Shared with the waiting callers only
+        } catch (InterruptedException e) {
+            // The task is done, only an interrupted owner gets here; skip caching
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RequestCoalescer[executed=" + mExecutedCount + ", shared=" + mSharedCount +
+                ", cached=" + mCachedCount + ", inFlight=" + mInFlight.size() + "]";
+    }
+
+    private static class CachedResult {
+        final Object mValue;
+        final long mTime;
+
+        CachedResult(Object value, long time) {
+            mValue = value;
+            mTime = time;
+        }
+    }
+}
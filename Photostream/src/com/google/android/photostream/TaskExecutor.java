@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Instrumented thread pool used to run {@link UserTask user tasks}. A TaskExecutor
+ * never rejects work: tasks submitted while all the threads are busy wait in an
+ * unbounded queue.</p>
+ *
+ * <p>Three flavors are available:</p>
+ * <ul>
+ *     <li>{@link #newSerialExecutor(String)}, runs one task at a time, in order.</li>
+ *     <li>{@link #newBoundedExecutor(String, int)}, runs at most a fixed number of
+ *     tasks at a time, in order.</li>
+ *     <li>{@link #newPriorityExecutor(String, int)}, runs at most a fixed number of
+ *     tasks at a time, lowest priority value first. Tasks of equal priority run in
+ *     order. Tasks implementing {@link Prioritized} provide their own priority, other
+ *     tasks run with {@link #PRIORITY_VISIBLE}.</li>
+ * </ul>
+ *
+ * <p>Every executor records the time tasks spend waiting in the queue and running,
+ * which can be read with {@link #getAverageWaitTime()}, {@link #getMaxWaitTime()} and
+ * {@link #getAverageRunTime()}, along with {@link #getQueueDepth()} and
+ * {@link #getActiveCount()}.</p>
+ */
+public class TaskExecutor extends ThreadPoolExecutor {
+    /**
+     * Priority of the work whose result the user is waiting for.
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+    /**
+     * Priority of speculative work, such as prefetching, that must not delay
+     * visible work.
+     */
+    public static final int PRIORITY_PREFETCH = 10;
+
+    private static final int KEEP_ALIVE = 10;
+
+    private final String mName;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicLong mTotalWaitTime = new AtomicLong();
+    private final AtomicLong mTotalRunTime = new AtomicLong();
+    private final AtomicLong mMaxWaitTime = new AtomicLong();
+
+    /**
+     * Implemented by tasks that want to run with a specific priority on a
+     * {@link #newPriorityExecutor(String, int) priority executor}.
+     */
+    public interface Prioritized {
+        /**
+         * Returns the priority of this task. Lower values run first.
+         *
+         * @return The priority of the task, for instance {@link #PRIORITY_VISIBLE}.
+         */
+        int getPriority();
+    }
+
+    private TaskExecutor(String name, int threads, BlockingQueue<Runnable> queue) {
+        super(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, queue, new NamedThreadFactory(name));
+        mName = name;
+    }
+
+    /**
+     * Creates an executor that runs one task at a time, in submission order.
+     *
+     * @param name The name given to the executor's thread.
+     *
+     * @return A new serial executor.
+     */
+    public static TaskExecutor newSerialExecutor(String name) {
+        return new TaskExecutor(name, 1, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Creates an executor that runs at most the specified number of tasks at a
+     * time, in submission order.
+     *
+     * @param name The name given to the executor's threads.
+     * @param threads The maximum number of tasks running at the same time.
+     *
+     * @return A new bounded executor.
+     */
+    public static TaskExecutor newBoundedExecutor(String name, int threads) {
+        return new TaskExecutor(name, threads, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Creates an executor that runs at most the specified number of tasks at a
+     * time, by order of {@link Prioritized#getPriority() priority}.
+     *
+     * @param name The name given to the executor's threads.
+     * @param threads The maximum number of tasks running at the same time.
+     *
+     * @return A new priority executor.
+     */
+    public static TaskExecutor newPriorityExecutor(String name, int threads) {
+        return new TaskExecutor(name, threads, new PriorityBlockingQueue<Runnable>());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        final int priority = command instanceof Prioritized ?
+                ((Prioritized) command).getPriority() : PRIORITY_VISIBLE;
+        super.execute(new TimedRunnable(command, priority, mSequence.getAndIncrement()));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+
+        final TimedRunnable task = (TimedRunnable) r;
+        task.mStartTime = SystemClock.uptimeMillis();
+
+        final long wait = task.mStartTime - task.mQueueTime;
+        mTotalWaitTime.addAndGet(wait);
+
+        long max;
+        while (wait > (max = mMaxWaitTime.get())) {
+            if (mMaxWaitTime.compareAndSet(max, wait)) break;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+
+        final TimedRunnable task = (TimedRunnable) r;
+        mTotalRunTime.addAndGet(SystemClock.uptimeMillis() - task.mStartTime);
+        mCompletedCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     *
+     * @return The number of queued tasks.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, completed tasks spent in the queue.
+     *
+     * @return The average wait time in milliseconds.
+     */
+    public long getAverageWaitTime() {
+        final int count = mCompletedCount.get();
+        return count == 0 ? 0 : mTotalWaitTime.get() / count;
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, a task spent in the queue.
+     *
+     * @return The maximum wait time in milliseconds.
+     */
+    public long getMaxWaitTime() {
+        return mMaxWaitTime.get();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, completed tasks spent running.
+     *
+     * @return The average run time in milliseconds.
+     */
+    public long getAverageRunTime() {
+        final int count = mCompletedCount.get();
+        return count == 0 ? 0 : mTotalRunTime.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return mName + "[queued=" + getQueueDepth() + ", active=" + getActiveCount() +
+                ", completed=" + mCompletedCount.get() + ", avgWait=" + getAverageWaitTime() +
+                "ms, maxWait=" + getMaxWaitTime() + "ms, avgRun=" + getAverageRunTime() + "ms]";
+    }
+
+    private static class TimedRunnable implements Runnable, Comparable<TimedRunnable> {
+        final Runnable mRunnable;
+        final int mPriority;
+        final long mSequence;
+        final long mQueueTime;
+        long mStartTime;
+
+        TimedRunnable(Runnable runnable, int priority, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+            mQueueTime = SystemClock.uptimeMillis();
+        }
+
+        public void run() {
+            mRunnable.run();
+        }
+
+        public int compareTo(TimedRunnable another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mName;
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.google.android.photostream;
 
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.content.Context;
 import android.content.ContentValues;
 import android.util.Log;
@@ -27,13 +28,14 @@ import android.provider.BaseColumns;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Helper class to interact with the database that stores the Flickr contacts.
  */
 class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
     private static final String DATABASE_NAME = "flickr";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
 
     static final String TABLE_USERS = "users";
     static final String COLUMN_USERNAME = "username";
@@ -41,11 +43,53 @@ class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
     static final String COLUMN_NSID = "nsid";
     static final String COLUMN_BUDDY_ICON = "buddy_icon";
     static final String COLUMN_LAST_UPDATE = "last_update";
+    static final String COLUMN_FEED_ETAG = "feed_etag";
+    static final String COLUMN_FEED_LAST_MODIFIED = "feed_last_modified";
+    static final String COLUMN_CHECK_INTERVAL = "check_interval";
+    static final String COLUMN_NEXT_CHECK = "next_check";
 
     static final String SORT_DEFAULT = COLUMN_USERNAME + " ASC";
 
+    // Size, in pixels, of the buddy icons stored in the database. This is the size at
+    // which the icons are displayed in the users list, next to the user's name.
+    static final int BUDDY_ICON_SIZE = 48;
+
+    // Interval, in milliseconds, between two checks of the feed of a new contact
+    static final long DEFAULT_CHECK_INTERVAL = 24 * 60 * 60 * 1000;
+
+    private static final String SQL_INSERT_USER = "INSERT INTO users "
+            + "(username, realname, nsid, buddy_icon, last_update, next_check) "
+            + "VALUES (?, ?, ?, ?, ?, ?);";
+
     private Context mContext;
 
+    /**
+     * A user ready to be inserted in the database by
+     * {@link UserDatabase#addUsers(android.database.sqlite.SQLiteDatabase, java.util.List)}.
+     */
+    static final class NewUser {
+        final String userName;
+        final String realName;
+        final String nsid;
+        final byte[] buddyIcon;
+
+        /**
+         * Creates a new user.
+         *
+         * @param userName The Flickr user name.
+         * @param realName The name to display, or null to display the user name.
+         * @param nsid The user's NSID.
+         * @param buddyIcon The buddy icon, as returned by
+         *        {@link UserDatabase#compressBitmap(android.graphics.Bitmap)}, or null.
+         */
+        NewUser(String userName, String realName, String nsid, byte[] buddyIcon) {
+            this.userName = userName;
+            this.realName = realName != null ? realName : userName;
+            this.nsid = nsid;
+            this.buddyIcon = buddyIcon;
+        }
+    }
+
     UserDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
@@ -59,7 +103,11 @@ class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
                 + "realname TEXT, "
                 + "nsid TEXT, "
                 + "buddy_icon BLOB,"
-                + "last_update INTEGER);");
+                + "last_update INTEGER, "
+                + "feed_etag TEXT, "
+                + "feed_last_modified TEXT, "
+                + "check_interval INTEGER DEFAULT " + DEFAULT_CHECK_INTERVAL + ", "
+                + "next_check INTEGER DEFAULT 0);");
 
         addUser(db, "Bob Lee", "Bob Lee", "45701389@N00", R.drawable.boblee_buddyicon);
         addUser(db, "ericktseng", "Erick Tseng", "76701017@N00", R.drawable.ericktseng_buddyicon);
@@ -74,6 +122,7 @@ class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
         values.put(COLUMN_REALNAME, realName);
         values.put(COLUMN_NSID, nsid);
         values.put(COLUMN_LAST_UPDATE, System.currentTimeMillis());
+        values.put(COLUMN_NEXT_CHECK, System.currentTimeMillis() + DEFAULT_CHECK_INTERVAL);
 
         final Bitmap bitmap = BitmapFactory.decodeResource(mContext.getResources(), icon);
         writeBitmap(values, COLUMN_BUDDY_ICON, bitmap);
@@ -81,30 +130,123 @@ class UserDatabase extends SQLiteOpenHelper implements BaseColumns {
         db.insert(TABLE_USERS, COLUMN_LAST_UPDATE, values);
     }
 
+    /**
+     * Stores the specified Bitmap as a PNG in the specified column. Bitmaps larger than
+     * {@link #BUDDY_ICON_SIZE} are scaled down first, preserving their aspect ratio, so
+     * that the stored icons can be displayed without any further scaling.
+     *
+     * @param values The values to store the Bitmap into.
+     * @param name The name of the column.
+     * @param bitmap The Bitmap to store, can be null.
+     */
     static void writeBitmap(ContentValues values, String name, Bitmap bitmap) {
-        if (bitmap != null) {
-            // Try go guesstimate how much space the icon will take when serialized
-            // to avoid unnecessary allocations/copies during the write.
-            int size = bitmap.getWidth() * bitmap.getHeight() * 2;
-            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
-            try {
-                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-                out.flush();
-                out.close();
-
-                values.put(name, out.toByteArray());
-            } catch (IOException e) {
-                // Ignore
+        final byte[] data = compressBitmap(bitmap);
+        if (data != null) values.put(name, data);
+    }
+
+    /**
+     * Compresses the specified Bitmap to the PNG stored in the buddy icon column,
+     * scaling it down to {@link #BUDDY_ICON_SIZE} first if needed.
+     *
+     * @param bitmap The Bitmap to compress, can be null.
+     *
+     * @return The compressed icon, or null if bitmap is null or cannot be compressed.
+     */
+    static byte[] compressBitmap(Bitmap bitmap) {
+        if (bitmap == null) return null;
+
+        bitmap = scaleIcon(bitmap);
+
+        // Try go guesstimate how much space the icon will take when serialized
+        // to avoid unnecessary allocations/copies during the write.
+        int size = bitmap.getWidth() * bitmap.getHeight() * 2;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.flush();
+            out.close();
+
+            return out.toByteArray();
+        } catch (IOException e) {
+            // Ignore
+        }
+
+        return null;
+    }
+
+    /**
+     * Inserts the specified users in a single transaction, using one prepared
+     * statement for all the rows. Either all the users are inserted, or none.
+     *
+     * @param db The database to insert the users into.
+     * @param users The users to insert.
+     *
+     * @return The number of users inserted.
+     */
+    static int addUsers(SQLiteDatabase db, List<NewUser> users) {
+        if (users.isEmpty()) return 0;
+
+        final long now = System.currentTimeMillis();
+        final SQLiteStatement insert = db.compileStatement(SQL_INSERT_USER);
+
+        db.beginTransaction();
+        try {
+            for (NewUser user : users) {
+                insert.bindString(1, user.userName);
+                insert.bindString(2, user.realName);
+                insert.bindString(3, user.nsid);
+                if (user.buddyIcon != null) {
+                    insert.bindBlob(4, user.buddyIcon);
+                } else {
+                    insert.bindNull(4);
+                }
+                insert.bindLong(5, now);
+                insert.bindLong(6, now + DEFAULT_CHECK_INTERVAL);
+                insert.executeInsert();
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
         }
+
+        return users.size();
+    }
+
+    private static Bitmap scaleIcon(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width <= BUDDY_ICON_SIZE && height <= BUDDY_ICON_SIZE) return bitmap;
+
+        final float scale = Math.min((float) BUDDY_ICON_SIZE / width,
+                (float) BUDDY_ICON_SIZE / height);
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, (int) (width * scale)),
+                Math.max(1, (int) (height * scale)), true);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to " +
-                newVersion + ", which will destroy all old data");
+        if (oldVersion == 1) {
+            // Version 2 adds the validators used to poll the feeds with conditional requests
+            db.execSQL("ALTER TABLE users ADD COLUMN feed_etag TEXT;");
+            db.execSQL("ALTER TABLE users ADD COLUMN feed_last_modified TEXT;");
+            oldVersion = 2;
+        }
+
+        if (oldVersion == 2) {
+            // Version 3 adds the adaptive polling schedule of each feed
+            db.execSQL("ALTER TABLE users ADD COLUMN check_interval INTEGER DEFAULT " +
+                    DEFAULT_CHECK_INTERVAL + ";");
+            db.execSQL("ALTER TABLE users ADD COLUMN next_check INTEGER DEFAULT 0;");
+            oldVersion = 3;
+        }
 
-        db.execSQL("DROP TABLE IF EXISTS users");
-        onCreate(db);
+        if (oldVersion != newVersion) {
+            Log.w(Flickr.LOG_TAG, "Upgrading database from version " + oldVersion + " to " +
+                    newVersion + ", which will destroy all old data");
+
+            db.execSQL("DROP TABLE IF EXISTS users");
+            onCreate(db);
+        }
     }
 }
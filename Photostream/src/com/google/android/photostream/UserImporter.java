@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.photostream;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports Flickr contacts in bulk. The user names are resolved concurrently: each
+ * lookup finds the user's NSID, downloads the user's information and buddy icon and
+ * compresses the icon. The resolved users are then written to the database in a
+ * single transaction.
+ *
+ * Importing is interrupted as soon as the calling thread is interrupted, in which
+ * case nothing is written.
+ */
+final class UserImporter {
+    // Maximum number of users resolved at the same time
+    private static final int MAX_CONCURRENT_LOOKUPS = 4;
+
+    private UserImporter() {
+    }
+
+    /**
+     * Splits the specified text into user names. User names are separated by commas
+     * or new lines; empty names are ignored.
+     *
+     * @param text The text to split.
+     *
+     * @return The list of user names found in the text.
+     */
+    static List<String> parseUserNames(String text) {
+        final ArrayList<String> names = new ArrayList<String>();
+        for (String name : text.split("[,\n]")) {
+            name = name.trim();
+            if (name.length() > 0) names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Resolves the specified user names and adds the users that were found to the
+     * database. Duplicate names, ignoring case, are resolved only once. Names that
+     * do not match any Flickr user are skipped.
+     *
+     * @param db The database to add the users to.
+     * @param userNames The names of the users to import.
+     *
+     * @return The number of users added to the database.
+     */
+    static int importUsers(SQLiteDatabase db, List<String> userNames) {
+        final List<UserDatabase.NewUser> users = resolve(userNames);
+        if (Thread.currentThread().isInterrupted()) return 0;
+        return UserDatabase.addUsers(db, users);
+    }
+
+    /**
+     * Resolves the specified user names, with at most
+     * {@link UserImporter#MAX_CONCURRENT_LOOKUPS} lookups in flight at the same time.
+     *
+     * @param userNames The names of the users to resolve.
+     *
+     * @return The users that were found, in the order in which they were resolved.
+     */
+    static List<UserDatabase.NewUser> resolve(List<String> userNames) {
+        final ArrayList<UserDatabase.NewUser> users = new ArrayList<UserDatabase.NewUser>();
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_LOOKUPS);
+        final ExecutorCompletionService<UserDatabase.NewUser> completion =
+                new ExecutorCompletionService<UserDatabase.NewUser>(executor);
+
+        try {
+            final HashSet<String> submitted = new HashSet<String>();
+            for (final String name : userNames) {
+                if (!submitted.add(name.toLowerCase(Locale.US))) continue;
+
+                completion.submit(new Callable<UserDatabase.NewUser>() {
+                    public UserDatabase.NewUser call() {
+                        return resolveUser(name);
+                    }
+                });
+            }
+
+            final int count = submitted.size();
+            for (int i = 0; i < count; i++) {
+                try {
+                    final UserDatabase.NewUser user = completion.take().get();
+                    if (user != null) users.add(user);
+                } catch (ExecutionException e) {
+                    android.util.Log.e(Flickr.LOG_TAG, "Could not import user", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return users;
+    }
+
+    private static UserDatabase.NewUser resolveUser(String name) {
+        final Flickr flickr = Flickr.get();
+
+        final Flickr.User user = flickr.findByUserName(name);
+        if (user == null || Thread.currentThread().isInterrupted()) return null;
+
+        final Flickr.UserInfo info = flickr.getUserInfo(user);
+        if (info == null || Thread.currentThread().isInterrupted()) return null;
+
+        return new UserDatabase.NewUser(name, info.getRealName(), user.getId(),
+                UserDatabase.compressBitmap(info.loadBuddyIcon()));
+    }
+}
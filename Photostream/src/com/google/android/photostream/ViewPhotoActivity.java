@@ -81,11 +81,17 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
     private TextView mPhotoTitle;
     private TextView mPhotoDate;
 
+    // True once the photo, or its preview, is displayed
+    private boolean mPhotoShown;
+    // True once the final photo is displayed
+    private boolean mPhotoLoaded;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         mPhoto = getPhoto();
+        ImageCache.initialize(this);
 
         setContentView(R.layout.screen_photo);
         setupViews();
@@ -106,7 +112,7 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mTask != null && mTask.getStatus() != UserTask.Status.RUNNING) {
+        if (mTask != null && mTask.getStatus() == UserTask.Status.RUNNING) {
             mTask.cancel(true);
         }
     }
@@ -158,6 +164,8 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
             mTask = new LoadPhotoTask().execute(mPhoto, width, height);
         } else {
             mPhotoView.setImageBitmap((Bitmap) data);
+            mPhotoShown = true;
+            mPhotoLoaded = true;
             mSwitcher.showNext();
         }
     }
@@ -223,13 +231,15 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
      * If we successfully loaded a photo, send it to our future self to allow
      * for fast display rotation. By doing so, we avoid reloading the photo
      * from the network when the activity is taken down and recreated upon
-     * display rotation.
+     * display rotation. A preview is not retained, the new instance loads
+     * the photo again instead.
      *
      * @return The Bitmap displayed in the ImageView, or null if the photo
      *         wasn't loaded.
      */
     @Override
     public Object onRetainNonConfigurationInstance() {
+        if (!mPhotoLoaded) return null;
         final Drawable d = mPhotoView.getDrawable();
         return d != null ? ((BitmapDrawable) d).getBitmap() : null;
     }
@@ -264,56 +274,103 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
     }
 
     /**
-     * Background task to load the photo from Flickr. The task loads the bitmap,
-     * then scale it to the appropriate dimension. The task ends by readjusting
-     * the activity's layout so that everything aligns correctly.
+     * Displays the specified framed photo. The first photo displayed fades in along
+     * with its title and date, the following ones, if any, replace it in place.
+     *
+     * @param photo The framed photo to display.
      */
-    private class LoadPhotoTask extends UserTask<Object, Void, Bitmap> {
+    private void showPhoto(Bitmap photo) {
+        final Drawable previous = mPhotoShown ? mPhotoView.getDrawable() : null;
+        mPhotoView.setImageBitmap(photo);
+
+        // The preview was only ever displayed here, its Bitmap can be reused
+        if (previous != null) {
+            BitmapPool.get().release(((BitmapDrawable) previous).getBitmap());
+        }
+
+        // Find by how many pixels the title and date must be shifted on the
+        // horizontal axis to be left aligned with the photo
+        final int offsetX = (mPhotoView.getMeasuredWidth() - photo.getWidth()) / 2;
+
+        // Forces the ImageView to have the same size as its embedded bitmap
+        // This will remove the empty space between the title/date pair and
+        // the photo itself
+        LinearLayout.LayoutParams params;
+        params = (LinearLayout.LayoutParams) mPhotoView.getLayoutParams();
+        params.height = photo.getHeight();
+        params.weight = 0.0f;
+        mPhotoView.setLayoutParams(params);
+
+        params = (LinearLayout.LayoutParams) mPhotoTitle.getLayoutParams();
+        params.leftMargin = offsetX;
+        mPhotoTitle.setLayoutParams(params);
+
+        params = (LinearLayout.LayoutParams) mPhotoDate.getLayoutParams();
+        params.leftMargin = offsetX;
+        mPhotoDate.setLayoutParams(params);
+
+        if (!mPhotoShown) {
+            mPhotoShown = true;
+            mSwitcher.showNext();
+            mContainer.startAnimation(AnimationUtils.loadAnimation(ViewPhotoActivity.this,
+                    R.anim.fade_in));
+            mContainer.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Background task to load the photo from Flickr. If the thumbnail of the photo
+     * is in the cache, it is first scaled up to the appropriate dimension and
+     * published as a preview, so that something is displayed while the medium
+     * size photo downloads. The task then loads the medium size bitmap and scales
+     * it to the appropriate dimension. Each displayed photo readjusts the
+     * activity's layout so that everything aligns correctly.
+     */
+    private class LoadPhotoTask extends UserTask<Object, Bitmap, Bitmap> {
         public Bitmap doInBackground(Object... params) {
-            Bitmap bitmap = ((Flickr.Photo) params[0]).loadPhotoBitmap(Flickr.PhotoSize.MEDIUM);
+            final Flickr.Photo photo = (Flickr.Photo) params[0];
+            final int width = (Integer) params[1];
+            final int height = (Integer) params[2];
+
+            // Photos are shared with the image cache and must not be recycled
+            Bitmap preview = null;
+            if (photo.peekPhotoBitmap(Flickr.PhotoSize.MEDIUM) == null) {
+                preview = photo.loadCachedPhotoBitmap(Flickr.PhotoSize.THUMBNAIL);
+                if (preview != null && !isCancelled()) {
+                    publishProgress(ImageUtilities.scaleAndFrame(preview, width, height));
+                }
+            }
+
+            if (isCancelled()) return null;
+
+            Bitmap bitmap = photo.loadPhotoBitmap(Flickr.PhotoSize.MEDIUM, width, height);
+            if (bitmap == null && preview != null) {
+                // Keep the preview rather than replacing it with an error
+                return null;
+            }
+
+            final boolean recycle = bitmap == null;
             if (bitmap == null) {
                 bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.not_found);
             }
 
-            final int width = (Integer) params[1];
-            final int height = (Integer) params[2];
-
             final Bitmap framed = ImageUtilities.scaleAndFrame(bitmap, width, height);
-            bitmap.recycle();
+            if (recycle) bitmap.recycle();
 
             return framed;
         }
 
         @Override
-        public void onPostExecute(Bitmap result) {
-            mPhotoView.setImageBitmap(result);
-
-            // Find by how many pixels the title and date must be shifted on the
-            // horizontal axis to be left aligned with the photo
-            final int offsetX = (mPhotoView.getMeasuredWidth() - result.getWidth()) / 2;
-
-            // Forces the ImageView to have the same size as its embedded bitmap
-            // This will remove the empty space between the title/date pair and
-            // the photo itself
-            LinearLayout.LayoutParams params;
-            params = (LinearLayout.LayoutParams) mPhotoView.getLayoutParams();
-            params.height = result.getHeight();
-            params.weight = 0.0f;
-            mPhotoView.setLayoutParams(params);
-
-            params = (LinearLayout.LayoutParams) mPhotoTitle.getLayoutParams();
-            params.leftMargin = offsetX;
-            mPhotoTitle.setLayoutParams(params);
-
-            params = (LinearLayout.LayoutParams) mPhotoDate.getLayoutParams();
-            params.leftMargin = offsetX;
-            mPhotoDate.setLayoutParams(params);
-
-            mSwitcher.showNext();
-            mContainer.startAnimation(AnimationUtils.loadAnimation(ViewPhotoActivity.this,
-                    R.anim.fade_in));
-            mContainer.setVisibility(View.VISIBLE);
+        public void onProgressUpdate(Bitmap... values) {
+            showPhoto(values[0]);
+        }
 
+        @Override
+        public void onPostExecute(Bitmap result) {
+            if (result != null) {
+                showPhoto(result);
+                mPhotoLoaded = true;
+            }
             mTask = null;            
         }
     }
@@ -376,10 +433,15 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
         public Boolean doInBackground(Flickr.Photo... params) {
             boolean success = false;
 
+            // A wallpaper is a one-off, keep the large photo out of the disk cache
+            final Flickr.PhotoData data = params[0].loadPhotoData(Flickr.PhotoSize.LARGE,
+                    false);
+            if (data == null) return false;
+
             OutputStream out = null;
             try {
                 out = openFileOutput(mFile.getName(), MODE_WORLD_READABLE | MODE_WORLD_WRITEABLE);
-                Flickr.get().downloadPhoto(params[0], Flickr.PhotoSize.LARGE, out);
+                out.write(data.mBuffer, 0, data.mLength);
                 success = true;
             } catch (FileNotFoundException e) {
                 android.util.Log.e(Flickr.LOG_TAG, "Could not download photo", e);
@@ -388,6 +450,7 @@ public class ViewPhotoActivity extends Activity implements View.OnClickListener,
                 android.util.Log.e(Flickr.LOG_TAG, "Could not download photo", e);
                 success = false;
             } finally {
+                data.recycle();
                 if (out != null) {
                     try {
                         out.close();
@@ -39,20 +39,34 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -61,6 +75,13 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class DownloaderActivity extends Activity {
 
@@ -84,6 +105,21 @@ public class DownloaderActivity extends Activity {
             String customText, String fileConfigUrl,
             String configVersion, String dataPath,
             String userAgent) {
+        return ensureDownloaded(activity, customText, fileConfigUrl,
+                configVersion, dataPath, userAgent, DEFAULT_CONNECTION_COUNT);
+    }
+
+    /**
+     * Same as {@link #ensureDownloaded(Activity, String, String, String,
+     * String, String)}, but lets the caller choose how many files or parts
+     * of files are downloaded at the same time.
+     * @param connectionCount The maximum number of simultaneous connections
+     * to the web server.
+     */
+    public static boolean ensureDownloaded(Activity activity,
+            String customText, String fileConfigUrl,
+            String configVersion, String dataPath,
+            String userAgent, int connectionCount) {
         File dest = new File(dataPath);
         if (dest.exists()) {
             // Check version
@@ -99,6 +135,7 @@ public class DownloaderActivity extends Activity {
         intent.putExtra(EXTRA_CONFIG_VERSION, configVersion);
         intent.putExtra(EXTRA_DATA_PATH, dataPath);
         intent.putExtra(EXTRA_USER_AGENT, userAgent);
+        intent.putExtra(EXTRA_CONNECTION_COUNT, connectionCount);
         PreconditionActivityHelper.startPreconditionActivityAndFinish(
                 activity, intent);
         return false;
@@ -331,6 +368,22 @@ public class DownloaderActivity extends Activity {
                 String src;
                 String md5;
                 long size;
+                /**
+                 * Number of bytes of this part already written to the
+                 * destination file, at the offset of the part.
+                 */
+                long written;
+                /**
+                 * MD5 state of the first written bytes of this part, kept
+                 * so that a retry can continue the hash where it stopped.
+                 * Null if that state is not known.
+                 */
+                MessageDigest digest;
+                /**
+                 * True if the MD5 of this part was checked while it was
+                 * downloaded, so the verify pass can skip it.
+                 */
+                boolean verified;
             }
             ArrayList<Part> mParts = new ArrayList<Part>();
             String dest;
@@ -429,12 +482,14 @@ public class DownloaderActivity extends Activity {
             mConfigVersion = intent.getStringExtra(EXTRA_CONFIG_VERSION);
             mDataPath = intent.getStringExtra(EXTRA_DATA_PATH);
             mUserAgent = intent.getStringExtra(EXTRA_USER_AGENT);
+            mConnectionCount = Math.max(1, intent.getIntExtra(
+                    EXTRA_CONNECTION_COUNT, DEFAULT_CONNECTION_COUNT));
 
             mDataDir = new File(mDataPath);
 
             try {
                 // Download files.
-                mHttpClient = new DefaultHttpClient();
+                mHttpClient = createHttpClient();
                 Config config = getConfig();
                 filter(config);
                 persistantDownload(config);
@@ -443,9 +498,34 @@ public class DownloaderActivity extends Activity {
                 reportSuccess();
             } catch (Exception e) {
                 reportFailure(e.toString() + "\n" + Log.getStackTraceString(e));
+            } finally {
+                if (mHttpClient != null) {
+                    mHttpClient.getConnectionManager().shutdown();
+                }
             }
         }
 
+        /**
+         * Creates a client that can be shared by all the transfers, with
+         * up to mConnectionCount connections open to the web server.
+         */
+        private DefaultHttpClient createHttpClient() {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            ConnManagerParams.setMaxTotalConnections(params, mConnectionCount);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(mConnectionCount));
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http",
+                    PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https",
+                    SSLSocketFactory.getSocketFactory(), 443));
+
+            return new DefaultHttpClient(
+                    new ThreadSafeClientConnManager(params, registry), params);
+        }
+
         private void persistantDownload(Config config)
         throws ClientProtocolException, DownloaderException, IOException {
             while(true) {
@@ -602,74 +682,384 @@ public class DownloaderActivity extends Activity {
 
         private void download(Config config) throws DownloaderException,
             ClientProtocolException, IOException {
-            mDownloadedSize = 0;
             getSizes(config);
             Log.i(LOG_TAG, "Total bytes to download: "
                     + mTotalExpectedSize);
+            if (!mProgressLoaded) {
+                loadProgress(config);
+                mProgressLoaded = true;
+            }
+            mDownloadedSize = 0;
+            ArrayList<PartTransfer> transfers = new ArrayList<PartTransfer>();
             for(Config.File file : config.mFiles) {
-                downloadFile(file);
+                preallocate(file);
+                long offset = 0;
+                for(int i = 0; i < file.mParts.size(); i++) {
+                    Config.File.Part part = file.mParts.get(i);
+                    mDownloadedSize += part.written;
+                    if (part.written < part.size) {
+                        transfers.add(new PartTransfer(file, i, offset));
+                    }
+                    offset += part.size;
+                }
+            }
+            if (! transfers.isEmpty()) {
+                runTransfers(transfers);
             }
         }
 
-        private void downloadFile(Config.File file) throws DownloaderException,
-                FileNotFoundException, IOException, ClientProtocolException {
-            boolean append = false;
-            File dest = new File(mDataDir, file.dest);
-            long bytesToSkip = 0;
-            if (dest.exists() && dest.isFile()) {
-                append = true;
-                bytesToSkip = dest.length();
-                mDownloadedSize += bytesToSkip;
-            }
-            FileOutputStream os = null;
-            long offsetOfCurrentPart = 0;
+        /**
+         * Runs the transfers on up to mConnectionCount threads and waits for
+         * all of them to complete. The first transfer to fail stops the
+         * others, and its exception is rethrown.
+         */
+        private void runTransfers(ArrayList<PartTransfer> transfers)
+            throws DownloaderException, IOException {
+            int threadCount = Math.min(mConnectionCount, transfers.size());
+            Log.i(LOG_TAG, "Downloading " + transfers.size() + " parts on "
+                    + threadCount + " connections");
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            CompletionService<Void> completionService =
+                new ExecutorCompletionService<Void>(executor);
             try {
-                for(Config.File.Part part : file.mParts) {
-                    // The part.size==0 check below allows us to download
-                    // zero-length files.
-                    if ((part.size > bytesToSkip) || (part.size == 0)) {
-                        MessageDigest digest = null;
-                        if (part.md5 != null) {
-                            digest = createDigest();
-                            if (bytesToSkip > 0) {
-                                FileInputStream is = openInput(file.dest);
-                                try {
-                                    is.skip(offsetOfCurrentPart);
-                                    readIntoDigest(is, bytesToSkip, digest);
-                                } finally {
-                                    quietClose(is);
-                                }
-                            }
+                for(PartTransfer transfer : transfers) {
+                    completionService.submit(transfer);
+                }
+                for(int i = 0; i < transfers.size(); i++) {
+                    completionService.take().get();
+                }
+            } catch (InterruptedException e) {
+                Log.i(LOG_TAG, "downloader thread interrupted.");
+                throw new DownloaderException("Thread interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DownloaderException) {
+                    throw (DownloaderException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new DownloaderException(cause.toString());
+            } finally {
+                executor.shutdownNow();
+                for(PartTransfer transfer : transfers) {
+                    transfer.abort();
+                }
+                // A retry resumes the parts where these transfers stopped,
+                // so wait until they no longer touch them.
+                try {
+                    executor.awaitTermination(TRANSFER_SHUTDOWN_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Downloads the rest of one part into its own region of the
+         * destination file. Each transfer has its own request and buffer,
+         * so several transfers can run at the same time.
+         */
+        private class PartTransfer implements Callable<Void> {
+            PartTransfer(Config.File file, int index, long offset) {
+                mFile = file;
+                mIndex = index;
+                mPart = file.mParts.get(index);
+                mOffset = offset;
+            }
+
+            public Void call() throws ClientProtocolException,
+                DownloaderException, IOException {
+                Thread.currentThread().setPriority(Thread.NORM_PRIORITY - 1);
+                Config.File.Part part = mPart;
+                File dest = new File(mDataDir, mFile.dest);
+                if ((part.md5 != null) && (part.digest == null)) {
+                    // Only the bytes written to this part by an earlier
+                    // run of the downloader have to be read again.
+                    MessageDigest digest = createDigest();
+                    if (part.written > 0) {
+                        FileInputStream is = new FileInputStream(dest);
+                        try {
+                            is.skip(mOffset);
+                            readIntoDigest(is, part.written, digest, mBuffer);
+                        } finally {
+                            quietClose(is);
+                        }
+                    }
+                    // Only keep a digest that covers every written byte.
+                    part.digest = digest;
+                }
+                RandomAccessFile os = new RandomAccessFile(dest, "rw");
+                try {
+                    os.seek(mOffset + part.written);
+                    transfer(os, part.digest);
+                    // The progress file is about to claim the whole part,
+                    // and the verify pass trusts parts checked on the fly.
+                    os.getFD().sync();
+                } finally {
+                    os.close();
+                }
+                String hash = null;
+                if (part.digest != null) {
+                    hash = getHash(part.digest);
+                    part.digest = null;
+                    if (!hash.equalsIgnoreCase(part.md5)) {
+                        Log.e(LOG_TAG, "web MD5 checksums don't match. "
+                                + part.src + "\nExpected "
+                                + part.md5 + "\n     got " + hash);
+                        addDownloadedBytes(-part.written);
+                        part.written = 0;
+                        recordProgress(mFile, mIndex, 0, null);
+                        throw new DownloaderException(
+                              "Received bad data from web server");
+                    } else {
+                       Log.i(LOG_TAG, "web MD5 checksum matches.");
+                       part.verified = true;
+                    }
+                }
+                recordProgress(mFile, mIndex, part.written, hash);
+                return null;
+            }
+
+            /**
+             * Aborts the request in progress, if any. May be called from
+             * any thread.
+             */
+            void abort() {
+                HttpGet request = mRequest;
+                if (request != null) {
+                    request.abort();
+                }
+            }
+
+            private void transfer(RandomAccessFile os, MessageDigest digest)
+                throws ClientProtocolException, IOException,
+                DownloaderException {
+                Config.File.Part part = mPart;
+                HttpGet request = new HttpGet(normalizeUrl(part.src));
+                mRequest = request;
+                InputStream is = get(request, part.written, part.size);
+                boolean completed = false;
+                long unrecorded = 0;
+                try {
+                    while(true) {
+                        if (Thread.interrupted()) {
+                            Log.i(LOG_TAG, "transfer thread interrupted.");
+                            throw new DownloaderException("Thread interrupted");
                         }
-                        if (os == null) {
-                            os = openOutput(file.dest, append);
+                        int bytesRead = is.read(mBuffer);
+                        if (bytesRead < 0) {
+                            break;
                         }
-                        downloadPart(part.src, os, bytesToSkip,
-                                part.size, digest);
+                        if (part.written + bytesRead > part.size) {
+                            // Don't overwrite the next part.
+                            break;
+                        }
+                        os.write(mBuffer, 0, bytesRead);
                         if (digest != null) {
-                            String hash = getHash(digest);
-                            if (!hash.equalsIgnoreCase(part.md5)) {
-                                Log.e(LOG_TAG, "web MD5 checksums don't match. "
-                                        + part.src + "\nExpected "
-                                        + part.md5 + "\n     got " + hash);
-                                quietClose(os);
-                                dest.delete();
-                                throw new DownloaderException(
-                                      "Received bad data from web server");
-                            } else {
-                               Log.i(LOG_TAG, "web MD5 checksum matches.");
-                            }
+                            updateDigest(digest, mBuffer, bytesRead);
+                        }
+                        part.written += bytesRead;
+                        addDownloadedBytes(bytesRead);
+                        unrecorded += bytesRead;
+                        if (unrecorded >= PROGRESS_RECORD_SIZE) {
+                            // The file is preallocated, so its length proves
+                            // nothing: only record bytes that reached the card.
+                            os.getFD().sync();
+                            recordProgress(mFile, mIndex, part.written, null);
+                            unrecorded = 0;
                         }
                     }
-                    bytesToSkip -= Math.min(bytesToSkip, part.size);
-                    offsetOfCurrentPart += part.size;
+                    if (part.written != part.size) {
+                        Log.e(LOG_TAG, "Bad file transfer from server: "
+                                + part.src + " Expected " + part.size
+                                + " Received at least " + part.written);
+                        throw new DownloaderException(
+                                "Incorrect number of bytes received from server");
+                    }
+                    completed = true;
+                } finally {
+                    if (! completed) {
+                        // Don't read the rest of the response.
+                        request.abort();
+                    }
+                    quietClose(is);
+                    mRequest = null;
                 }
+            }
+
+            private final Config.File mFile;
+            private final int mIndex;
+            private final Config.File.Part mPart;
+            private final long mOffset;
+            private volatile HttpGet mRequest;
+            private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        }
+
+        /**
+         * Creates the destination file with its final length, so that each
+         * part can be written at its own offset.
+         */
+        private void preallocate(Config.File file)
+            throws IOException, DownloaderException {
+            File dest = new File(mDataDir, file.dest);
+            long size = file.getSize();
+            if (dest.isFile() && (dest.length() == size)) {
+                return;
+            }
+            createParent(dest);
+            RandomAccessFile os = new RandomAccessFile(dest, "rw");
+            try {
+                os.setLength(size);
             } finally {
-                quietClose(os);
+                os.close();
             }
         }
 
+        private synchronized void addDownloadedBytes(long count) {
+            mDownloadedSize += count;
+            int progress = (int) (Math.min(mTotalExpectedSize,
+                    mDownloadedSize * 10000 /
+                    Math.max(1, mTotalExpectedSize)));
+            if (progress != mReportedProgress) {
+                mReportedProgress = progress;
+                reportProgress(progress);
+            }
+        }
+
+        /**
+         * Restores how many bytes of each part were written by an earlier
+         * attempt, and which parts were verified while they were downloaded.
+         * The progress file is used if it was written for this version of
+         * the config. Otherwise the files are assumed to be valid up to their
+         * length, as left by earlier versions of the downloader that wrote
+         * each file from start to end.
+         */
+        private void loadProgress(Config config) throws IOException {
+            HashMap<String, Config.File.Part> parts =
+                new HashMap<String, Config.File.Part>();
+            for(Config.File file : config.mFiles) {
+                for(int i = 0; i < file.mParts.size(); i++) {
+                    Config.File.Part part = file.mParts.get(i);
+                    part.written = 0;
+                    part.verified = false;
+                    parts.put(getProgressKey(file, i), part);
+                }
+            }
+            boolean hasProgress = readProgressFile(config.version, parts);
+            for(Config.File file : config.mFiles) {
+                File dest = new File(mDataDir, file.dest);
+                long length = dest.isFile() ? dest.length() : 0;
+                long offset = 0;
+                for(Config.File.Part part : file.mParts) {
+                    long written = length - offset;
+                    if (hasProgress) {
+                        written = Math.min(written, part.written);
+                    }
+                    part.written = Math.max(0, Math.min(written, part.size));
+                    part.verified &= (part.written == part.size);
+                    offset += part.size;
+                }
+            }
+            writeProgressFile(config);
+        }
+
+        /**
+         * Reads the progress file into the parts. The first line is the
+         * version of the config. Each following line holds the number of
+         * bytes written for a part, the MD5 it was verified with or "-",
+         * and the key of the part. Later lines replace earlier ones.
+         * @return false if there is no progress file for this version of
+         * the config.
+         */
+        private boolean readProgressFile(String version,
+                HashMap<String, Config.File.Part> parts) throws IOException {
+            File progressFile = new File(mDataDir, LOCAL_PROGRESS_FILE);
+            if (! progressFile.exists()) {
+                return false;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(progressFile), "UTF-8"));
+            try {
+                if (! version.equals(reader.readLine())) {
+                    return false;
+                }
+                String line;
+                while((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length < 3) {
+                        continue;
+                    }
+                    Config.File.Part part = parts.get(fields[2]);
+                    if (part == null) {
+                        continue;
+                    }
+                    try {
+                        part.written = Long.parseLong(fields[0]);
+                        part.verified = fields[1].equalsIgnoreCase(part.md5);
+                    } catch (NumberFormatException e) {
+                        // Cut short by a crash, ignore.
+                    }
+                }
+                return true;
+            } finally {
+                reader.close();
+            }
+        }
+
+        private synchronized void writeProgressFile(Config config)
+            throws IOException {
+            StringBuilder builder = new StringBuilder();
+            builder.append(config.version).append('\n');
+            for(Config.File file : config.mFiles) {
+                for(int i = 0; i < file.mParts.size(); i++) {
+                    Config.File.Part part = file.mParts.get(i);
+                    builder.append(getProgressLine(file, i, part.written,
+                            part.verified ? part.md5 : null));
+                }
+            }
+            FileOutputStream os = new FileOutputStream(
+                    new File(mDataDir, LOCAL_PROGRESS_FILE));
+            try {
+                os.write(builder.toString().getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+        }
+
+        /**
+         * Appends the progress of a part to the progress file.
+         * @param hash the MD5 the part was verified with, or null.
+         */
+        private synchronized void recordProgress(Config.File file, int index,
+                long written, String hash) throws IOException {
+            String line = getProgressLine(file, index, written, hash);
+            FileOutputStream os = new FileOutputStream(
+                    new File(mDataDir, LOCAL_PROGRESS_FILE), true);
+            try {
+                os.write(line.getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+        }
+
+        private String getProgressLine(Config.File file, int index,
+                long written, String hash) {
+            return written + " " + (hash != null ? hash : "-") + " "
+                    + getProgressKey(file, index) + "\n";
+        }
+
+        private String getProgressKey(Config.File file, int index) {
+            return index + " " + file.dest;
+        }
+
         private void cleanup() throws IOException {
+            File progress = new File(mDataDir, LOCAL_PROGRESS_FILE);
+            progress.delete();
             File filtered = new File(mDataDir, LOCAL_FILTERED_FILE);
             noisyDelete(filtered);
             File tempConfig = new File(mDataDir, LOCAL_CONFIG_FILE_TEMP);
@@ -699,8 +1089,6 @@ public class DownloaderActivity extends Activity {
 
         private boolean verifyFile(Config.File file, boolean deleteInvalid)
                 throws FileNotFoundException, DownloaderException, IOException {
-            Log.i(LOG_TAG, "verifying " + file.dest);
-            reportVerifying();
             File dest = new File(mDataDir, file.dest);
             if (! dest.exists()) {
                 Log.e(LOG_TAG, "File does not exist: " + dest.toString());
@@ -716,14 +1104,27 @@ public class DownloaderActivity extends Activity {
                     return false;
                 }
             }
+            boolean hashNeeded = false;
+            for(Config.File.Part part : file.mParts) {
+                hashNeeded |= (part.md5 != null) && !part.verified;
+            }
+            if (! hashNeeded) {
+                // Either there is nothing to check, or every part was
+                // checked while it was downloaded.
+                Log.i(LOG_TAG, "verified during download: " + file.dest);
+                return true;
+            }
+            Log.i(LOG_TAG, "verifying " + file.dest);
+            reportVerifying();
             FileInputStream is = new FileInputStream(dest);
             try {
                 for(Config.File.Part part : file.mParts) {
-                    if (part.md5 == null) {
+                    if ((part.md5 == null) || part.verified) {
+                        is.skip(part.size);
                         continue;
                     }
                     MessageDigest digest = createDigest();
-                    readIntoDigest(is, part.size, digest);
+                    readIntoDigest(is, part.size, digest, mFileIOBuffer);
                     String hash = getHash(digest);
                     if (!hash.equalsIgnoreCase(part.md5)) {
                         Log.e(LOG_TAG, "MD5 checksums don't match. " +
@@ -743,15 +1144,22 @@ public class DownloaderActivity extends Activity {
         }
 
         private void readIntoDigest(FileInputStream is, long bytesToRead,
-                MessageDigest digest) throws IOException {
+                MessageDigest digest, byte[] buffer)
+            throws DownloaderException, IOException {
             while(bytesToRead > 0) {
-                int chunkSize = (int) Math.min(mFileIOBuffer.length,
+                // Reading back a large file can take a while, don't keep
+                // onDestroy waiting for it.
+                if (Thread.interrupted()) {
+                    Log.i(LOG_TAG, "digest thread interrupted.");
+                    throw new DownloaderException("Thread interrupted");
+                }
+                int chunkSize = (int) Math.min(buffer.length,
                         bytesToRead);
-                int bytesRead = is.read(mFileIOBuffer, 0, chunkSize);
+                int bytesRead = is.read(buffer, 0, chunkSize);
                 if (bytesRead < 0) {
                     break;
                 }
-                updateDigest(digest, bytesRead);
+                updateDigest(digest, buffer, bytesRead);
                 bytesToRead -= bytesRead;
             }
         }
@@ -766,14 +1174,15 @@ public class DownloaderActivity extends Activity {
             return digest;
         }
 
-        private void updateDigest(MessageDigest digest, int bytesRead) {
-            if (bytesRead == mFileIOBuffer.length) {
-                digest.update(mFileIOBuffer);
+        private void updateDigest(MessageDigest digest, byte[] buffer,
+                int bytesRead) {
+            if (bytesRead == buffer.length) {
+                digest.update(buffer);
             } else {
                 // Work around an awkward API: Create a
                 // new buffer with just the valid bytes
                 byte[] temp = new byte[bytesRead];
-                System.arraycopy(mFileIOBuffer, 0,
+                System.arraycopy(buffer, 0,
                         temp, 0, bytesRead);
                 digest.update(temp);
             }
@@ -802,6 +1211,11 @@ public class DownloaderActivity extends Activity {
                 for(Config.File.Part part : file.mParts) {
                     if (part.size < 0) {
                         part.size = getSize(part.src);
+                        if (part.size < 0) {
+                            // Needed to find the offset of the next part.
+                            throw new DownloaderException(
+                                    "Unknown size for " + part.src);
+                        }
                     }
                 }
             }
@@ -815,6 +1229,8 @@ public class DownloaderActivity extends Activity {
             HttpHead httpGet = new HttpHead(url);
             HttpResponse response = mHttpClient.execute(httpGet);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                // Release the connection.
+                httpGet.abort();
                 throw new IOException("Unexpected Http status code "
                     + response.getStatusLine().getStatusCode());
             }
@@ -830,13 +1246,11 @@ public class DownloaderActivity extends Activity {
             return (new URL(new URL(mFileConfigUrl), url)).toString();
         }
 
-        private InputStream get(String url, long startOffset,
+        private InputStream get(HttpGet httpGet, long startOffset,
                 long expectedLength)
             throws ClientProtocolException, IOException {
-            url = normalizeUrl(url);
-            Log.i(LOG_TAG, "Get " + url);
+            Log.i(LOG_TAG, "Get " + httpGet.getURI());
 
-            mHttpGet = new HttpGet(url);
             int expectedStatusCode = HttpStatus.SC_OK;
             if (startOffset > 0) {
                 String range = "bytes=" + startOffset + "-";
@@ -844,10 +1258,10 @@ public class DownloaderActivity extends Activity {
                     range += expectedLength-1;
                 }
                 Log.i(LOG_TAG, "requesting byte range " + range);
-                mHttpGet.addHeader("Range", range);
+                httpGet.addHeader("Range", range);
                 expectedStatusCode = HttpStatus.SC_PARTIAL_CONTENT;
             }
-            HttpResponse response = mHttpClient.execute(mHttpGet);
+            HttpResponse response = mHttpClient.execute(httpGet);
             long bytesToSkip = 0;
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode != expectedStatusCode) {
@@ -857,6 +1271,8 @@ public class DownloaderActivity extends Activity {
                     Log.i(LOG_TAG, "Byte range request ignored");
                     bytesToSkip = startOffset;
                 } else {
+                    // Release the connection.
+                    httpGet.abort();
                     throw new IOException("Unexpected Http status code "
                             + statusCode + " expected "
                             + expectedStatusCode);
@@ -895,7 +1311,8 @@ public class DownloaderActivity extends Activity {
                         "startOffset > expectedLength" + startOffset + " "
                         + expectedLength);
             }
-            InputStream is = get(src, startOffset, expectedLength);
+            mHttpGet = new HttpGet(normalizeUrl(src));
+            InputStream is = get(mHttpGet, startOffset, expectedLength);
             try {
                 long bytesRead = downloadStream(is, os, digest);
                 if (lengthIsKnown) {
@@ -917,22 +1334,13 @@ public class DownloaderActivity extends Activity {
         private FileOutputStream openOutput(String dest, boolean append)
             throws FileNotFoundException, DownloaderException {
             File destFile = new File(mDataDir, dest);
-            File parent = destFile.getParentFile();
-            if (! parent.exists()) {
-                parent.mkdirs();
-            }
-            if (! parent.exists()) {
-                throw new DownloaderException("Could not create directory "
-                        + parent.toString());
-            }
+            createParent(destFile);
             FileOutputStream os = new FileOutputStream(destFile, append);
             return os;
         }
 
-        private FileInputStream openInput(String src)
-            throws FileNotFoundException, DownloaderException {
-            File srcFile = new File(mDataDir, src);
-            File parent = srcFile.getParentFile();
+        private void createParent(File file) throws DownloaderException {
+            File parent = file.getParentFile();
             if (! parent.exists()) {
                 parent.mkdirs();
             }
@@ -940,7 +1348,6 @@ public class DownloaderActivity extends Activity {
                 throw new DownloaderException("Could not create directory "
                         + parent.toString());
             }
-            return new FileInputStream(srcFile);
         }
 
         private long downloadStream(InputStream is, FileOutputStream os,
@@ -958,18 +1365,11 @@ public class DownloaderActivity extends Activity {
                     break;
                 }
                 if (digest != null) {
-                    updateDigest(digest, bytesRead);
+                    updateDigest(digest, mFileIOBuffer, bytesRead);
                 }
                 totalBytesRead += bytesRead;
                 os.write(mFileIOBuffer, 0, bytesRead);
-                mDownloadedSize += bytesRead;
-                int progress = (int) (Math.min(mTotalExpectedSize,
-                        mDownloadedSize * 10000 /
-                        Math.max(1, mTotalExpectedSize)));
-                if (progress != mReportedProgress) {
-                    mReportedProgress = progress;
-                    reportProgress(progress);
-                }
+                addDownloadedBytes(bytesRead);
             }
             return totalBytesRead;
         }
@@ -981,10 +1381,18 @@ public class DownloaderActivity extends Activity {
         private String mDataPath;
         private File mDataDir;
         private String mUserAgent;
+        private int mConnectionCount;
+        private boolean mProgressLoaded;
         private long mTotalExpectedSize;
         private long mDownloadedSize;
         private int mReportedProgress;
         private final static int CHUNK_SIZE = 32 * 1024;
+        /**
+         * Number of bytes a transfer writes between two updates of the
+         * progress file.
+         */
+        private final static int PROGRESS_RECORD_SIZE = 1024 * 1024;
+        private final static long TRANSFER_SHUTDOWN_TIMEOUT = 10 * 1000;
         byte[] mFileIOBuffer = new byte[CHUNK_SIZE];
     }
 
@@ -1004,11 +1412,16 @@ public class DownloaderActivity extends Activity {
     private final static String LOCAL_CONFIG_FILE = ".downloadConfig";
     private final static String LOCAL_CONFIG_FILE_TEMP = ".downloadConfig_temp";
     private final static String LOCAL_FILTERED_FILE = ".downloadConfig_filtered";
+    private final static String LOCAL_PROGRESS_FILE = ".downloadConfig_progress";
     private final static String EXTRA_CUSTOM_TEXT = "DownloaderActivity_custom_text";
     private final static String EXTRA_FILE_CONFIG_URL = "DownloaderActivity_config_url";
     private final static String EXTRA_CONFIG_VERSION = "DownloaderActivity_config_version";
     private final static String EXTRA_DATA_PATH = "DownloaderActivity_data_path";
     private final static String EXTRA_USER_AGENT = "DownloaderActivity_user_agent";
+    private final static String EXTRA_CONNECTION_COUNT =
+        "DownloaderActivity_connection_count";
+
+    private final static int DEFAULT_CONNECTION_COUNT = 4;
 
     private final static int MSG_DOWNLOAD_SUCCEEDED = 0;
     private final static int MSG_DOWNLOAD_FAILED = 1;